@@ -0,0 +1,76 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures FrameEncoder and FrameDecoder on their own, without a device.
+ * Every invocation encodes or decodes 1 MiB of random packets, and scores are
+ * counted per packet byte, so ops/us reads directly as MB/s.
+ *
+ * The default arguments add JMH's gc profiler, whose gc.alloc.rate.norm
+ * column should stay at 0 bytes.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FramingBenchmark {
+
+	private static final int BLOCK_SIZE = 1 << 20;
+
+	@Param({"COBS", "SLIP"})
+	public Framing framing;
+
+	@Param({"NONE", "CRC16", "CRC32"})
+	public Checksum checksum;
+
+	@Param({"16", "256", "4096"})
+	public int payloadSize;
+
+	private FrameEncoder encoder;
+	private FrameDecoder decoder;
+	private byte[] packets;
+	private byte[] encoded;
+	private int encodedLength;
+	private long received;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		encoder = new FrameEncoder(framing, checksum);
+		decoder = new FrameDecoder(framing, checksum, payloadSize, new FrameListener(){
+			public void frameReceived(byte[] buffer, int offset, int length){
+				received += length;
+			}
+		});
+		packets = new byte[BLOCK_SIZE];
+		new Random(42).nextBytes(packets);
+		encoded = new byte[encoder.maxEncodedLength(payloadSize) * (BLOCK_SIZE / payloadSize)];
+		encodedLength = encodeBlock();
+	}
+
+	private int encodeBlock(){
+		int position = 0;
+		for (int offset = 0; offset < BLOCK_SIZE; offset += payloadSize){
+			position += encoder.encode(packets, offset, payloadSize, encoded, position);
+		}
+		return position;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BLOCK_SIZE)
+	public int encode(){
+		return encodeBlock();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BLOCK_SIZE)
+	public long decode(){
+		decoder.decode(encoded, 0, encodedLength);
+		return received;
+	}
+}
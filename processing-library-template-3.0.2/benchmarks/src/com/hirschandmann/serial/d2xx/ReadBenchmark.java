@@ -0,0 +1,54 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the full write, loopback and read pipeline: a frame is written,
+ * echoed by an unthrottled LoopbackTransport, drained by the reader thread
+ * and read back from the receive buffer.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReadBenchmark {
+
+	@Param({"1", "64", "512", "4096", "16384"})
+	public int payloadSize;
+
+	private D2XX d2xx;
+	private byte[] payload;
+	private byte[] received;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		LoopbackTransport transport = new LoopbackTransport();
+		transport.setThrottled(false);
+		d2xx = new D2XX(null, transport, 250000);
+		d2xx.setOverflowPolicy(OverflowPolicy.BLOCK);
+		d2xx.preallocateFrames(payloadSize);
+		payload = new byte[payloadSize];
+		received = new byte[payloadSize];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		d2xx.dispose();
+	}
+
+	/** Time from write() until the same bytes have been read back.
+	 *  The sample distribution reports p50 and p99 */
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int roundTrip(){
+		d2xx.write(payload);
+		int count = 0;
+		while (count < payloadSize){
+			count += d2xx.read(received, count, payloadSize - count);
+		}
+		return count;
+	}
+}
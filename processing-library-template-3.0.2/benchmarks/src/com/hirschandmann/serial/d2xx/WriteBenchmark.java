@@ -0,0 +1,77 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Measures the D2XX write path against an unthrottled LoopbackTransport
+ * acting as a sink, so only the library's own overhead is measured.
+ *
+ * Run with "ant benchmark" (see build.properties). The default arguments add
+ * JMH's gc profiler, whose gc.alloc.rate.norm column is the allocation per frame.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class WriteBenchmark {
+
+	@Param({"1", "64", "512", "4096", "65536"})
+	public int payloadSize;
+
+	private LoopbackTransport transport;
+	private D2XX d2xx;
+	private byte[] payload;
+
+	@Setup(Level.Trial)
+	public void setup(BenchmarkParams params){
+		transport = new LoopbackTransport();
+		transport.setThrottled(false);
+		transport.setLoopback(false);
+		d2xx = new D2XX(null, transport, 250000);
+		d2xx.preallocateFrames(payloadSize);
+		// enqueue must never wait for the writer, the other benchmarks must send every frame
+		boolean enqueueOnly = params.getBenchmark().endsWith(".enqueue");
+		d2xx.setOverflowPolicy(enqueueOnly ? OverflowPolicy.DROP_OLDEST : OverflowPolicy.BLOCK);
+		payload = new byte[payloadSize];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		d2xx.dispose();
+	}
+
+	/** Cost of a single write() call on the sketch thread. Never waits for the
+	 *  writer: frames that do not fit are dropped, oldest first */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void enqueue(){
+		d2xx.write(payload);
+	}
+
+	/** Frames per second the writer thread sustains. Every frame is sent */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void sustained(){
+		d2xx.write(payload);
+	}
+
+	/** Time from write() until the transport has accepted the frame.
+	 *  The sample distribution reports p50 and p99 */
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long writeToWire(){
+		long target = transport.getWriteCalls() + 1;
+		d2xx.write(payload);
+		long calls;
+		do {
+			calls = transport.getWriteCalls();
+		} while (calls < target);
+		return calls;
+	}
+}
@@ -0,0 +1,28 @@
+import com.hirschandmann.serial.d2xx.*;
+import com.ftdichip.ftd2xx.BitBangMode;
+
+D2XX d2xx;
+BitBang pins;
+
+// pin 0 is the clock, pin 1 the data of a shift register
+byte[] waveform = new byte[16 * 2];
+
+void setup() {
+  size(400,400);
+  
+  d2xx = new D2XX(this, 0, 9600);
+  pins = new BitBang(d2xx, 0x03, BitBangMode.ASYNCHRONOUS);
+  pins.setClockRate(1000000);
+}
+
+void draw() {
+  background(0);
+  int pattern = frameCount;
+  // shift 16 bits out, data is set with the clock low and latched on the rising edge
+  for (int i = 0; i < 16; i++) {
+    int bit = (pattern >> (15 - i)) & 1;
+    waveform[i * 2]     = (byte)(bit << 1);
+    waveform[i * 2 + 1] = (byte)((bit << 1) | 1);
+  }
+  pins.write(waveform);
+}
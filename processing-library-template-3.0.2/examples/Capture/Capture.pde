@@ -0,0 +1,38 @@
+import com.hirschandmann.serial.d2xx.*;
+
+D2XX d2xx;
+CapturePlayer player;
+byte[] frame = new byte[512];
+
+void setup() {
+  size(400,400);
+  
+  d2xx = new D2XX(this, 0, 250000);
+  // everything sent from now on is recorded with its timing
+  d2xx.startCapture(sketchPath("show.d2xc"));
+}
+
+void draw() {
+  background(0);
+  if (player == null) {
+    for (int i = 0; i < frame.length; i++) {
+      frame[i] = (byte)(frameCount + i);
+    }
+    d2xx.write(frame);
+  }
+}
+
+void keyPressed() {
+  if (player == null) {
+    // stop recording and play the show back with its original timing,
+    // draw() no longer does any work
+    d2xx.stopCapture();
+    try {
+      player = new CapturePlayer(sketchPath("show.d2xc"));
+      player.setLoop(true);
+      player.play(d2xx);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
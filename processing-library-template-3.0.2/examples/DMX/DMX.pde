@@ -0,0 +1,22 @@
+import com.hirschandmann.serial.d2xx.*;
+
+D2XX d2xx;
+DmxOutput dmx;
+
+void setup() {
+  size(512,100);
+  
+  d2xx = new D2XX(this, 0, DmxOutput.BAUD_RATE);
+  // the universe is refreshed by the library, draw() only sets values
+  dmx = new DmxOutput(d2xx);
+}
+
+void draw() {
+  // dimmer on channel 1 follows the mouse, an RGB fixture on channels 2-4 cycles
+  dmx.set(1, (int)map(mouseX, 0, width, 0, 255));
+  dmx.set(2, frameCount % 255);
+  dmx.set(3, 128);
+  dmx.set(4, 255 - frameCount % 255);
+  
+  background(dmx.get(1));
+}
@@ -0,0 +1,34 @@
+import com.hirschandmann.serial.d2xx.*;
+
+D2XX d2xx;
+FrameEncoder encoder;
+FrameDecoder decoder;
+byte[] packet = new byte[64];
+int lastValue;
+
+void setup() {
+  size(400,400);
+  
+  d2xx = new D2XX(this, 0, 115200);
+  // packets are protected by a CRC and delimited with COBS, so a corrupted
+  // or partial packet is dropped instead of shifting everything after it
+  encoder = new FrameEncoder(Framing.COBS, Checksum.CRC16);
+  decoder = new FrameDecoder(Framing.COBS, Checksum.CRC16, 1024, new FrameListener() {
+    public void frameReceived(byte[] buffer, int offset, int length) {
+      // the buffer is reused for the next packet
+      lastValue = buffer[offset] & 0xFF;
+    }
+  });
+}
+
+void draw() {
+  background(0);
+  packet[0] = (byte) mouseX;
+  encoder.write(d2xx, packet);
+  
+  decoder.decode(d2xx);
+  fill(255);
+  text("last value: " + lastValue, 10, 20);
+  text("packets: " + decoder.getFrames(), 10, 40);
+  text("checksum errors: " + decoder.getChecksumErrors(), 10, 60);
+}
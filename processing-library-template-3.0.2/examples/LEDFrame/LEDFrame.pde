@@ -0,0 +1,34 @@
+import com.hirschandmann.serial.d2xx.*;
+
+D2XX d2xx;
+PixelEncoder encoder;
+
+int columns = 32;
+int rows = 16;
+int[] mapping = new int[columns * rows];
+
+void setup() {
+  size(320,160);
+  
+  d2xx = new D2XX(this, 0, 1000000);
+  
+  // sample the centre of every 10x10 cell, strip runs in a zig-zag
+  for (int y = 0; y < rows; y++) {
+    for (int x = 0; x < columns; x++) {
+      int column = y % 2 == 0 ? x : columns - 1 - x;
+      mapping[y * columns + x] = (y * 10 + 5) * width + column * 10 + 5;
+    }
+  }
+  encoder = new PixelEncoder(ColorOrder.GRB, mapping);
+  encoder.setGamma(2.2);
+  encoder.setBrightness(0.5);
+}
+
+void draw() {
+  background(0);
+  noStroke();
+  fill(frameCount % 255, 128, 255 - frameCount % 255);
+  ellipse(mouseX, mouseY, 80, 80);
+  
+  encoder.write(d2xx, g);
+}
@@ -1,17 +1,30 @@
 import com.hirschandmann.serial.d2xx.*;
+import com.ftdichip.ftd2xx.Device;
 
-D2XX d2xx;
+DeviceRegistry registry;
 
 void setup() {
   size(400,400);
   smooth();
   
-  d2xx = new D2XX(this, 1, 9600);
-  d2xx.listDevices();
-
+  registry = DeviceRegistry.getInstance();
+  // look for devices being plugged in or unplugged every second
+  registry.setRescanInterval(1000);
+  registry.addListener(new DeviceListener() {
+    public void deviceAttached(String serialNumber, Device device) {
+      println("attached " + serialNumber);
+    }
+    public void deviceDetached(String serialNumber, Device device) {
+      println("detached " + serialNumber);
+    }
+  });
 }
 
 void draw() {
   background(0);
   fill(255);
+  Device[] devices = registry.getDevices();
+  for (int i = 0; i < devices.length; i++) {
+    text(i + ": " + registry.getSerialNumber(devices[i]), 10, 20 + i * 20);
+  }
 }
@@ -0,0 +1,27 @@
+import com.hirschandmann.serial.d2xx.*;
+
+D2XXManager manager;
+int[] outputs = new int[4];
+
+byte[] frame = new byte[512];
+
+void setup() {
+  size(400,400);
+  
+  manager = new D2XXManager(this, 250000);
+  // open ports by index, or use openBySerialNumber("A6008isP") / openByDescription("FT232R USB UART")
+  for (int i = 0; i < outputs.length; i++) {
+    outputs[i] = manager.openByIndex(i);
+  }
+}
+
+void draw() {
+  background(0);
+  
+  for (int i = 0; i < outputs.length; i++) {
+    if (outputs[i] >= 0) {
+      java.util.Arrays.fill(frame, (byte) (frameCount + i * 64));
+      manager.writeFrame(outputs[i], frame);
+    }
+  }
+}
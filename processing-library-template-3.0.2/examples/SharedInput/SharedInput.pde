@@ -0,0 +1,35 @@
+import com.hirschandmann.serial.d2xx.*;
+
+// Frames rendered by another program arrive through a shared ring file and
+// are sent to the device by its writer thread, draw() does no work for them.
+// Any process can produce into the ring; from Java:
+//
+//   SharedFrameRing ring = SharedFrameRing.create("/tmp/frames.d2xr", 8, 4096);
+//   ByteBuffer slot = ring.claim();
+//   slot.put(pixels);
+//   ring.commit(slot.position());
+
+D2XX d2xx;
+SharedFrameRing ring;
+
+void setup() {
+  size(400,400);
+  
+  d2xx = new D2XX(this, 0, 3000000);
+  try {
+    // the sketch creates the ring, so it exists before the producer starts
+    ring = SharedFrameRing.create("/tmp/frames.d2xr", 8, 4096);
+    d2xx.setSharedInput(ring);
+  } catch (IOException e) {
+    e.printStackTrace();
+  }
+}
+
+void draw() {
+  background(0);
+  if (ring != null) {
+    fill(255);
+    text("frames sent: " + ring.getFramesConsumed(), 10, 20);
+    text("frames skipped: " + ring.getFramesSkipped(), 10, 40);
+  }
+}
@@ -0,0 +1,34 @@
+import com.hirschandmann.serial.d2xx.*;
+import java.util.concurrent.CompletableFuture;
+
+D2XX d2xx;
+Transactions transactions;
+CompletableFuture<byte[]>[] replies = new CompletableFuture[16];
+
+void setup() {
+  size(400,400);
+  
+  d2xx = new D2XX(this, 0, 115200);
+  // the device answers "Q07\n" with "R07 <value>\n", characters 1 and 2 tell which
+  // question a reply belongs to
+  transactions = new Transactions(d2xx, '\n', new CorrelationExtractor() {
+    public Object extract(byte[] message) {
+      return new String(message, 1, 2);
+    }
+  });
+  transactions.setTimeout(200);
+}
+
+void draw() {
+  background(0);
+  // all questions go out at once instead of waiting for each reply in turn
+  for (int i = 0; i < replies.length; i++) {
+    if (replies[i] == null || replies[i].isDone()) {
+      replies[i] = transactions.request(String.format("Q%02d\n", i).getBytes());
+    }
+  }
+  fill(255);
+  text("waiting: " + transactions.getPending(), 10, 20);
+  text("answered: " + transactions.getCompleted(), 10, 40);
+  text("timed out: " + transactions.getTimeouts(), 10, 60);
+}
@@ -0,0 +1,168 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.util.concurrent.locks.LockSupport;
+
+import com.ftdichip.ftd2xx.BitBangMode;
+
+/**
+ * Drives the 8 data pins of an FTDI chip directly. Every byte of a waveform
+ * is one state of the pins, clocked out at a fixed rate by the chip itself,
+ * so a whole waveform costs a few large USB transfers instead of one write
+ * per transition.
+ *
+ * In asynchronous mode the waveform is streamed through the device's writer
+ * thread. In synchronous mode the chip samples the pins before setting each
+ * state, and transfer() collects those samples. Mode and clock rate changes
+ * are queued with the waveforms, so they never land in the middle of one.
+ *
+ * <pre>
+ * BitBang pins = new BitBang(d2xx, 0xFF, BitBangMode.ASYNCHRONOUS);
+ * pins.setClockRate(1000000);
+ * pins.write(waveform);
+ * </pre>
+ *
+ * @example BitBang
+ */
+public class BitBang {
+
+	// size of the writes a waveform is split into
+	public static final int CHUNK_SIZE = 4096;
+	// FT232R and FT245R clock bit-bang data at 16 times the baud rate
+	public static final int CLOCK_MULTIPLIER = 16;
+	// bytes in flight before synchronous samples must be collected,
+	// keeps the samples from overflowing the receive buffer
+	private static final int SAMPLE_WINDOW = D2XX.DEFAULT_RECEIVE_CAPACITY / 2;
+	private static final long SAMPLE_POLL_NANOS = 100000;
+
+	private final D2XX d2xx;
+	private final BitBangMode mode;
+	private final byte[] single = new byte[1];
+	// the clock last asked for, the device applies it once the writes before it are sent
+	private volatile int baudRate;
+
+	/** Switches the device to bit-bang mode. Pacing and batching are turned
+	 *  off, as they would drop or delay parts of a waveform
+	 *
+	 * @param d2xx			- an open device
+	 * @param directionMask - one bit per pin, 1 for output and 0 for input
+	 * @param mode			- BitBangMode.ASYNCHRONOUS or BitBangMode.SYNCHRONOUS
+	 */
+	public BitBang(D2XX d2xx, int directionMask, BitBangMode mode){
+		if (mode != BitBangMode.ASYNCHRONOUS && mode != BitBangMode.SYNCHRONOUS){
+			throw new IllegalArgumentException("unsupported bit-bang mode: " + mode);
+		}
+		this.d2xx = d2xx;
+		this.mode = mode;
+		baudRate = d2xx.getBaudRate();
+		d2xx.setFrameRate(0);
+		d2xx.setBatching(0, 0);
+		d2xx.writeBitMode(directionMask, mode);
+	}
+
+	/** Sets how many pin states per second the chip clocks out
+	 *
+	 * @param hertz - the number of states per second
+	 */
+	public void setClockRate(int hertz){
+		baudRate = Math.max(1, hertz / CLOCK_MULTIPLIER);
+		d2xx.writeCommand(Frame.BAUD_RATE, baudRate);
+	}
+
+	/** Returns the number of pin states per second
+	 *
+	 * @return int - states per second
+	 */
+	public int getClockRate(){
+		return baudRate * CLOCK_MULTIPLIER;
+	}
+
+	/** Sets the pins to a single state
+	 *
+	 * @param state - one bit per pin
+	 */
+	public void setPins(int state){
+		single[0] = (byte) state;
+		d2xx.writeLossless(single, 0, 1);
+	}
+
+	/** Streams a waveform, one pin state per byte. Returns once the whole
+	 *  waveform is queued, waiting for room in the queue if needed.
+	 *  In synchronous mode the samples end up in the device's receive buffer,
+	 *  use transfer() to collect them instead
+	 *
+	 * @param waveform
+	 */
+	public void write(byte[] waveform){
+		write(waveform, 0, waveform.length);
+	}
+
+	/** Streams part of a waveform
+	 *
+	 * @param waveform
+	 * @param offset
+	 * @param length
+	 */
+	public void write(byte[] waveform, int offset, int length){
+		if (waveform == null || offset < 0 || length < 0 || offset + length > waveform.length){
+			System.err.println("Attempting to write null information!");
+			return;
+		}
+		int end = offset + length;
+		for (int i = offset; i < end; i += CHUNK_SIZE){
+			if (!d2xx.writeLossless(waveform, i, Math.min(CHUNK_SIZE, end - i))){
+				return;
+			}
+		}
+	}
+
+	/** Synchronous mode: streams a waveform and collects the pin states the
+	 *  chip sampled, one for every state written
+	 *
+	 * @param waveform 		- the pin states to write
+	 * @param samples  		- receives the sampled pin states, at least as long as the waveform
+	 * @param timeoutMillis - how long to wait for the samples
+	 * @return int - the number of samples collected
+	 */
+	public int transfer(byte[] waveform, byte[] samples, int timeoutMillis){
+		if (mode != BitBangMode.SYNCHRONOUS){
+			throw new IllegalStateException("transfer() needs BitBangMode.SYNCHRONOUS");
+		}
+		int length = Math.min(waveform.length, samples.length);
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		// drop anything received before this waveform
+		d2xx.clear();
+		int sent = 0;
+		int received = 0;
+		while (received < length){
+			boolean progress = false;
+			if (sent < length && sent - received < SAMPLE_WINDOW){
+				int count = Math.min(CHUNK_SIZE, length - sent);
+				if (!d2xx.writeLossless(waveform, sent, count)){
+					break;
+				}
+				sent += count;
+				progress = true;
+			}
+			int count = d2xx.read(samples, received, length - received);
+			if (count > 0){
+				received += count;
+				progress = true;
+			}
+			if (!progress){
+				if (System.nanoTime() - deadline > 0){
+					break;
+				}
+				LockSupport.parkNanos(SAMPLE_POLL_NANOS);
+			}
+		}
+		return received;
+	}
+
+	/** Switches the pins back to serial mode once the queued waveform has
+	 *  been handed to the device, and waits for that
+	 */
+	public void close(){
+		d2xx.writeBitMode(0, BitBangMode.RESET);
+		d2xx.awaitWrites(1000000000L);
+	}
+}
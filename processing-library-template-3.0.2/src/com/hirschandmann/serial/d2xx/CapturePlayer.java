@@ -0,0 +1,224 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a capture file recorded with D2XX.startCapture() back to a device,
+ * on a thread of its own so the sketch does no work while it plays. Any
+ * device will do, including one backed by a LoopbackTransport.
+ *
+ * Writes are replayed in order and none are dropped, not even by a device
+ * pacing its writes, together with the breaks and baud rate changes recorded
+ * between them, so DMX captures stay valid on the wire. At original timing each write is queued at the moment
+ * it was recorded; otherwise writes are queued as fast as the device takes
+ * them, while breaks still last as long as they were recorded. The device
+ * is set to the baud rate of the capture when playback starts.
+ *
+ * <pre>
+ * CapturePlayer player = new CapturePlayer(sketchPath("show.d2xc"));
+ * player.play(d2xx);
+ * </pre>
+ *
+ * @example Capture
+ */
+public class CapturePlayer implements Runnable {
+
+	// size of each mapped window of the file
+	private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int baudRate;
+	private final long startMillis;
+
+	private volatile boolean realTime = true;
+	private volatile boolean loop;
+	private volatile boolean playing;
+	private volatile long framesPlayed;
+	private D2XX target;
+	private Thread playerThread;
+
+	/** Opens a capture file and checks its header
+	 *
+	 * @param path - the capture file
+	 * @throws IOException when the file cannot be read or is not a capture
+	 */
+	public CapturePlayer(String path) throws IOException {
+		file = new RandomAccessFile(path, "r");
+		channel = file.getChannel();
+		if (file.length() < CaptureRecorder.HEADER_SIZE || file.readInt() != CaptureRecorder.MAGIC){
+			file.close();
+			throw new IOException(path + " is not a D2XX capture");
+		}
+		int version = file.readInt();
+		if (version < 1 || version > CaptureRecorder.VERSION){
+			file.close();
+			throw new IOException("Unsupported capture version " + version);
+		}
+		baudRate = file.readInt();
+		file.readInt();
+		startMillis = file.readLong();
+	}
+
+	/** Sets whether writes keep the timing they were recorded with, or are
+	 *  sent as fast as the device takes them. Defaults to true
+	 *
+	 * @param realTime
+	 */
+	public void setRealTime(boolean realTime){
+		this.realTime = realTime;
+	}
+
+	/** Sets whether playback starts over at the end of the capture
+	 *
+	 * @param loop
+	 */
+	public void setLoop(boolean loop){
+		this.loop = loop;
+	}
+
+	/** Starts playing the capture to a device. Stops any playback in progress first
+	 *
+	 * @param d2xx - an open device
+	 */
+	public synchronized void play(D2XX d2xx){
+		stop();
+		target = d2xx;
+		framesPlayed = 0;
+		playing = true;
+		playerThread = new Thread(this, "D2XX capture player");
+		playerThread.setDaemon(true);
+		playerThread.start();
+	}
+
+	/** Stops playing and waits for the player thread to finish */
+	public synchronized void stop(){
+		playing = false;
+		if (playerThread != null){
+			LockSupport.unpark(playerThread);
+			try {
+				playerThread.join();
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			playerThread = null;
+		}
+	}
+
+	/** Stops playing and closes the capture file */
+	public synchronized void close(){
+		stop();
+		try {
+			file.close();
+		} catch (IOException e){
+			e.printStackTrace();
+		}
+	}
+
+	/** Returns whether the capture is being played */
+	public boolean isPlaying(){
+		return playing;
+	}
+
+	/** Returns the number of writes played since play() */
+	public long getFramesPlayed(){
+		return framesPlayed;
+	}
+
+	/** Returns the baud rate the capture was recorded at */
+	public int getBaudRate(){
+		return baudRate;
+	}
+
+	/** Returns System.currentTimeMillis() at the start of the capture */
+	public long getStartTime(){
+		return startMillis;
+	}
+
+	/** Player thread: plays the capture once, or until stopped when looping */
+	public void run(){
+		try {
+			do {
+				playOnce();
+			} while (loop && playing);
+		} catch (IOException e){
+			e.printStackTrace();
+		}
+		playing = false;
+	}
+
+	private void playOnce() throws IOException {
+		long size = channel.size();
+		long position = CaptureRecorder.HEADER_SIZE;
+		long windowStart = position;
+		MappedByteBuffer window = map(windowStart, size, 0);
+		// the device starts at the baud rate the capture was recorded at
+		if (!target.writeCommand(Frame.BAUD_RATE, baudRate)){
+			playing = false;
+			return;
+		}
+		long start = System.nanoTime();
+		// recorded start of the break in progress
+		long breakStart = 0;
+		while (playing && position + CaptureRecorder.RECORD_HEADER_SIZE <= size){
+			int offset = (int) (position - windowStart);
+			if (offset + CaptureRecorder.RECORD_HEADER_SIZE > window.capacity()){
+				windowStart = position;
+				window = map(windowStart, size, 0);
+				offset = 0;
+			}
+			long timestamp = window.getLong(offset);
+			int type = window.getInt(offset + 8);
+			// control records carry no bytes for the device, only a baud rate
+			int length = type > 0 ? type : type == CaptureRecorder.BAUD_RATE ? 4 : 0;
+			if (type == 0 || type < CaptureRecorder.BAUD_RATE || position + CaptureRecorder.RECORD_HEADER_SIZE + length > size){
+				// end of a capture that was not cut to size
+				break;
+			}
+			if (offset + CaptureRecorder.RECORD_HEADER_SIZE + length > window.capacity()){
+				windowStart = position;
+				window = map(windowStart, size, CaptureRecorder.RECORD_HEADER_SIZE + length);
+				offset = 0;
+			}
+			if (realTime){
+				long remaining;
+				while (playing && (remaining = start + timestamp - System.nanoTime()) > 0){
+					LockSupport.parkNanos(this, remaining);
+				}
+			}
+			boolean queued;
+			if (type > 0){
+				window.limit(offset + CaptureRecorder.RECORD_HEADER_SIZE + length);
+				window.position(offset + CaptureRecorder.RECORD_HEADER_SIZE);
+				queued = target.writeLossless(window);
+				window.limit(window.capacity());
+			} else if (type == CaptureRecorder.BAUD_RATE){
+				queued = target.writeCommand(Frame.BAUD_RATE, window.getInt(offset + CaptureRecorder.RECORD_HEADER_SIZE));
+			} else if (type == CaptureRecorder.BREAK_ON){
+				breakStart = timestamp;
+				queued = target.writeCommand(Frame.BREAK_ON, 0);
+			} else {
+				queued = target.writeCommand(Frame.BREAK_OFF, (int) Math.min(timestamp - breakStart, Integer.MAX_VALUE));
+			}
+			if (!queued){
+				// the device was closed
+				playing = false;
+				break;
+			}
+			if (type > 0){
+				framesPlayed++;
+			}
+			position += CaptureRecorder.RECORD_HEADER_SIZE + length;
+		}
+	}
+
+	/** Maps the part of the file starting at position, at least minLength bytes long */
+	private MappedByteBuffer map(long position, long size, int minLength) throws IOException {
+		long length = Math.min(Math.max(WINDOW_SIZE, minLength), size - position);
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+	}
+}
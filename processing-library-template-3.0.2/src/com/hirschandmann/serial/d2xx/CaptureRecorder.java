@@ -0,0 +1,222 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.ftdichip.ftd2xx.BitBangMode;
+import com.ftdichip.ftd2xx.DataBits;
+import com.ftdichip.ftd2xx.Parity;
+import com.ftdichip.ftd2xx.StopBits;
+
+/**
+ * Passes everything through to the device's transport and appends every
+ * write, break and baud rate change to a capture file, which CapturePlayer
+ * can play back.
+ *
+ * The file is written through a memory-mapped region, so recording a write
+ * is a single copy with no system call. When the region is full the next one
+ * is mapped, and the file is cut to the recorded size when the capture stops.
+ *
+ * File layout, all numbers big-endian:
+ * <pre>
+ * header   int  magic, "D2XC"
+ *          int  version, 2
+ *          int  baud rate at the start of the capture
+ *          int  reserved, 0
+ *          long System.currentTimeMillis() at the start of the capture
+ * record   long nanoseconds since the start of the capture
+ *          int  length, or a negative record type
+ *          byte[length] the bytes handed to the device
+ *          int  the new baud rate, for BAUD_RATE records only
+ * </pre>
+ * Record types are BREAK_ON (-1), BREAK_OFF (-2) and BAUD_RATE (-3).
+ * Version 1 files, which hold writes only, can still be played.
+ *
+ * Only the writer thread writes, finish() may be called from any thread.
+ */
+class CaptureRecorder implements Transport {
+
+	static final int MAGIC = 0x44325843;
+	static final int VERSION = 2;
+	static final int BREAK_ON = -Frame.BREAK_ON;
+	static final int BREAK_OFF = -Frame.BREAK_OFF;
+	static final int BAUD_RATE = -Frame.BAUD_RATE;
+	static final int HEADER_SIZE = 24;
+	static final int RECORD_HEADER_SIZE = 12;
+	// size of each mapped region of the file
+	private static final int REGION_SIZE = 16 * 1024 * 1024;
+
+	private final Transport transport;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long startNanos = System.nanoTime();
+	private MappedByteBuffer region;
+	// file position of the start of the mapped region
+	private long regionStart;
+	private boolean closed;
+
+	private volatile long frames;
+	private volatile long bytes;
+
+	/**
+	 * @param transport - the device's transport, which every call is passed to
+	 * @param path 		- the capture file, replaced if it exists
+	 * @param baudRate 	- the baud rate recorded in the header
+	 */
+	CaptureRecorder(Transport transport, String path, int baudRate) throws IOException {
+		this.transport = transport;
+		file = new RandomAccessFile(path, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		map(0, REGION_SIZE);
+		region.putInt(MAGIC);
+		region.putInt(VERSION);
+		region.putInt(baudRate);
+		region.putInt(0);
+		region.putLong(System.currentTimeMillis());
+	}
+
+	private void map(long position, int size) throws IOException {
+		regionStart = position;
+		region = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+	}
+
+	/** Appends one write to the capture. Stops recording if the file cannot grow */
+	private synchronized void record(byte[] buffer, int offset, int length){
+		if (!startRecord(length, length)){
+			return;
+		}
+		region.put(buffer, offset, length);
+		frames++;
+		bytes += length;
+	}
+
+	/** Appends a break or baud rate change to the capture
+	 *
+	 * @param type 	   - BREAK_ON, BREAK_OFF or BAUD_RATE
+	 * @param baudRate - the new baud rate, for BAUD_RATE
+	 */
+	private synchronized void recordControl(int type, int baudRate){
+		if (!startRecord(type, type == BAUD_RATE ? 4 : 0)){
+			return;
+		}
+		if (type == BAUD_RATE){
+			region.putInt(baudRate);
+		}
+	}
+
+	/** Writes the header of a record, mapping the next region if needed
+	 *
+	 * @param type 	  - the length of a write, or a record type
+	 * @param payload - the number of bytes following the header
+	 * @return boolean - false if not recording
+	 */
+	private boolean startRecord(int type, int payload){
+		if (closed){
+			return false;
+		}
+		long now = System.nanoTime();
+		try {
+			if (region.remaining() < RECORD_HEADER_SIZE + payload){
+				map(regionStart + region.position(), Math.max(REGION_SIZE, RECORD_HEADER_SIZE + payload));
+			}
+		} catch (IOException e){
+			e.printStackTrace();
+			finish();
+			return false;
+		}
+		region.putLong(now - startNanos);
+		region.putInt(type);
+		return true;
+	}
+
+	/** Stops recording and cuts the file to the recorded size */
+	synchronized void finish(){
+		if (closed){
+			return;
+		}
+		closed = true;
+		long size = regionStart + region.position();
+		region.force();
+		region = null;
+		try {
+			channel.truncate(size);
+		} catch (IOException e){
+			// some platforms refuse while the region is still mapped, the
+			// player stops at the first empty record anyway
+		}
+		try {
+			file.close();
+		} catch (IOException e){
+			e.printStackTrace();
+		}
+	}
+
+	long getFrames(){
+		return frames;
+	}
+
+	long getBytes(){
+		return bytes;
+	}
+
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		transport.write(buffer, offset, length);
+		if (length > 0){
+			// an empty record marks the end of a capture that was not cut to size
+			record(buffer, offset, length);
+		}
+	}
+
+	public void open() throws IOException {
+		transport.open();
+	}
+
+	public void close() throws IOException {
+		transport.close();
+	}
+
+	public void reopen() throws IOException {
+		transport.reopen();
+	}
+
+	public boolean isOpen(){
+		return transport.isOpen();
+	}
+
+	public void setBaudRate(int baudRate) throws IOException {
+		transport.setBaudRate(baudRate);
+		recordControl(BAUD_RATE, baudRate);
+	}
+
+	public void setDataCharacteristics(DataBits dataBits, StopBits stopBits, Parity parity) throws IOException {
+		transport.setDataCharacteristics(dataBits, stopBits, parity);
+	}
+
+	public void setBreak(boolean on) throws IOException {
+		transport.setBreak(on);
+		recordControl(on ? BREAK_ON : BREAK_OFF, 0);
+	}
+
+	public void setBitMode(int directionMask, BitBangMode mode) throws IOException {
+		transport.setBitMode(directionMask, mode);
+	}
+
+	public void setProfile(DeviceProfile profile) throws IOException {
+		transport.setProfile(profile);
+	}
+
+	public int available() throws IOException {
+		return transport.available();
+	}
+
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		return transport.read(buffer, offset, length);
+	}
+
+	public String toString(){
+		return transport.toString();
+	}
+}
@@ -0,0 +1,71 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.util.zip.CRC32;
+
+/**
+ * The checksum FrameEncoder appends to every packet before framing it, and
+ * FrameDecoder verifies and strips. Checksums are appended big-endian.
+ */
+public enum Checksum {
+	/** No checksum */
+	NONE(0),
+	/** CRC-16/CCITT-FALSE: polynomial 0x1021, initial value 0xFFFF */
+	CRC16(2),
+	/** CRC-32 as used by Ethernet and zip */
+	CRC32(4);
+
+	private static final int[] CRC16_TABLE = new int[256];
+
+	static {
+		for (int i = 0; i < 256; i++){
+			int crc = i << 8;
+			for (int bit = 0; bit < 8; bit++){
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+			}
+			CRC16_TABLE[i] = crc & 0xFFFF;
+		}
+	}
+
+	private final int size;
+
+	private Checksum(int size){
+		this.size = size;
+	}
+
+	/** Returns the number of bytes the checksum adds to a packet
+	 *
+	 * @return int - 0, 2 or 4
+	 */
+	public int size(){
+		return size;
+	}
+
+	/** Computes the checksum of a packet
+	 *
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @param crc32  - reused by the caller to compute CRC32 without allocating
+	 * @return int - the checksum, in the low size() bytes
+	 */
+	int compute(byte[] buffer, int offset, int length, CRC32 crc32){
+		switch (this){
+			case CRC16:
+				return crc16(buffer, offset, length);
+			case CRC32:
+				crc32.reset();
+				crc32.update(buffer, offset, length);
+				return (int) crc32.getValue();
+			default:
+				return 0;
+		}
+	}
+
+	private static int crc16(byte[] buffer, int offset, int length){
+		int crc = 0xFFFF;
+		for (int i = offset, end = offset + length; i < end; i++){
+			crc = (crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ buffer[i]) & 0xFF];
+		}
+		return crc & 0xFFFF;
+	}
+}
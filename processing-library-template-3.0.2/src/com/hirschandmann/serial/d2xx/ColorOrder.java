@@ -0,0 +1,40 @@
+package com.hirschandmann.serial.d2xx;
+
+/**
+ * The order in which an LED strip expects the colour channels of a pixel.
+ * The W variants add a white channel, driven with the part of the colour
+ * that red, green and blue have in common.
+ */
+public enum ColorOrder {
+	RGB(0, 1, 2, -1),
+	RBG(0, 2, 1, -1),
+	GRB(1, 0, 2, -1),
+	GBR(2, 0, 1, -1),
+	BRG(1, 2, 0, -1),
+	BGR(2, 1, 0, -1),
+	RGBW(0, 1, 2, 3),
+	GRBW(1, 0, 2, 3);
+
+	// byte offset of each channel within a pixel, -1 if absent
+	final int red;
+	final int green;
+	final int blue;
+	final int white;
+	final int bytesPerPixel;
+
+	ColorOrder(int red, int green, int blue, int white){
+		this.red = red;
+		this.green = green;
+		this.blue = blue;
+		this.white = white;
+		this.bytesPerPixel = white < 0 ? 3 : 4;
+	}
+
+	/** Returns the number of bytes one pixel takes on the wire
+	 *
+	 * @return int - 3 or 4
+	 */
+	public int getBytesPerPixel(){
+		return bytesPerPixel;
+	}
+}
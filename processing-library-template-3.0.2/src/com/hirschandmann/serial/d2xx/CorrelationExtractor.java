@@ -0,0 +1,25 @@
+package com.hirschandmann.serial.d2xx;
+
+/**
+ * Tells Transactions which reply belongs to which request. It is applied to
+ * every request and every reply, and a reply completes the pending request
+ * whose id is equal to its own.
+ *
+ * <pre>
+ * // the second byte of every command and reply is a sequence number
+ * CorrelationExtractor bySequence = new CorrelationExtractor() {
+ *   public Object extract(byte[] message) {
+ *     return message[1];
+ *   }
+ * };
+ * </pre>
+ */
+public interface CorrelationExtractor {
+
+	/** Returns the id of a request or reply
+	 *
+	 * @param message - a complete request or reply
+	 * @return Object - the id, compared with equals()
+	 */
+	Object extract(byte[] message);
+}
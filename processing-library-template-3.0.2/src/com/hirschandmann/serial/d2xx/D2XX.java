@@ -1,12 +1,9 @@
 package com.hirschandmann.serial.d2xx;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.BufferedReader;
-import java.lang.reflect.Field;
-import java.net.URL;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
 
 import com.ftdichip.ftd2xx.*;
 
@@ -15,6 +12,10 @@ import processing.core.*;
 /**
  * Reads and writes serial data using the D2XX high speed serial communication library 
  *
+ * Writes are thread-safe: write(), writeUrgent(), obtainFrame() and send()
+ * may be called from several threads at once, and writes from one thread
+ * reach the device in the order they were made.
+ *
  * @example Write
  * @example ListDevices
  * @example WriteToSunspots 
@@ -25,39 +26,94 @@ public class D2XX implements Runnable{
 	// reference to the parent sketch
 	PApplet parent;
 	
-	// Native platform initialising variables
-	private boolean nativeLoaded;
-	private static boolean isArm = false;
-	private static String PATH_SEPARATOR = System.getProperty("Path.separator");
-	private static String FILE_SEPARATOR = File.separator;
+	// time from the start of the constructor until the port was open
+	private final long constructedAt = System.nanoTime();
+	private volatile long startupNanos = -1;
 
 	// Device variables
-	private static Device[] devices;
-	private Device dev;
-	private Port port;
+	private Device device;
+	private Transport transport;
+	// what the writer thread writes through, the transport or a CaptureRecorder wrapping it
+	private volatile Transport sink;
+	private CaptureRecorder capture;
+	private D2XXChannel channel;
 	private int portIndex;
 	private int baudRate;
-	private boolean isOpen;
+	private volatile boolean isOpen;
+	// holds a reference on the removal of the operating system's FTDI drivers
+	private boolean driversAcquired;
 	private DataBits dataBits = DataBits.DATA_BITS_8;
 	private StopBits stopBits = StopBits.STOP_BITS_1;
 	private Parity parity 	  = Parity.NONE;
+	private BitBangMode bitMode = BitBangMode.RESET;
+	private int bitDirectionMask;
+	// null leaves the driver settings untouched
+	private volatile DeviceProfile profile;
 	
 	// Packet variables
-	protected ByteArrayOutputStream bytesToWrite = new ByteArrayOutputStream();
-	private int byteToWrite = -1;
-	private int writeOffset = -1;
-	private int writeLength = -1;
-	
-	private final int BYTE = 1;
-	private final int BYTES = 2;
-	private final int BYTES_OFFSET = 3;
-	private final int NO_DATA = 4;
-	private int PACKET_TYPE = NO_DATA;
+	public static final int DEFAULT_QUEUE_CAPACITY = 16;
+	private final WriteQueue writeQueue = new WriteQueue(DEFAULT_QUEUE_CAPACITY, OverflowPolicy.DROP_OLDEST);
+	
+	// Urgent lane, sent ahead of the queued writes and between the chunks of a frame
+	private static final int URGENT_QUEUE_CAPACITY = 16;
+	public static final int DEFAULT_CHUNK_SIZE = 256;
+	private final WriteQueue urgentQueue = new WriteQueue(URGENT_QUEUE_CAPACITY, OverflowPolicy.BLOCK);
+	// frames are only split once the urgent lane has been used, or a chunk size was set
+	private volatile boolean chunking;
+	private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+	
+	// Batching variables, a batch size of 0 disables batching
+	private volatile int batchSize;
+	private volatile long batchDelayNanos;
+	private WriteBatch writeBatch;
+	
+	// Pacing variables, null sends every frame as soon as possible
+	private volatile FramePacer pacer;
+	// when the last break queued with writeCommand() started, only touched by the writer thread
+	private long breakStart;
+	// newest frame waiting for its slot, or a frame taken off the queue as the
+	// link went down, only touched by the writer thread
+	private Frame pacedFrame;
+	
+	// Output generated by the writer thread itself, such as DMX
+	private volatile PeriodicOutput periodicOutput;
+	private static final long PERIODIC_ERROR_NANOS = 100000000;
+	
+	// Reconnect variables, the writer thread reopens the link after a failure
+	private static final long RECONNECT_MIN_NANOS = 50000000;
+	private static final long RECONNECT_MAX_NANOS = 5000000000L;
+	private volatile boolean autoReconnect = true;
+	private volatile boolean connected = true;
+	private long reconnectDelay = RECONNECT_MIN_NANOS;
+	private long reconnectAt;
+	private int reconnectAttempts;
+	private volatile long reconnects;
+	
+	// Metrics variables
+	private final IOMetrics metrics = new IOMetrics();
+	private final D2XXMonitor monitor = new D2XXMonitor(this);
+
+	// Receive variables
+	public static final int DEFAULT_RECEIVE_CAPACITY = 65536;
+	private static final int READ_CHUNK_SIZE = 4096;
+	private static final long READ_POLL_NANOS = 1000000;
+	// longest wait between reads when the profile sets no read timeout
+	private static final long READ_IDLE_NANOS = 100000000;
+	private static final long READ_ERROR_NANOS = 100000000;
+	private static final long READER_JOIN_TIMEOUT = 100;
+	private static final long WRITER_JOIN_TIMEOUT = 1000;
+	private final ReceiveBuffer receiveBuffer = new ReceiveBuffer(DEFAULT_RECEIVE_CAPACITY);
+	private final byte[] readChunk = new byte[READ_CHUNK_SIZE];
+	// set while the reader thread backs off, a write wakes it up for the reply
+	private volatile boolean readerIdle;
+	private volatile Method d2xxEventMethod;
+	// takes received data on the reader thread, such as Transactions
+	private volatile ReceiveHandler receiveHandler;
 
 	// Running logic variables
-	private boolean threadActive = true;
-	private static final int SLEEP_TIME = 3;
-	private static boolean returnCachedDeviceList = false;
+	private volatile boolean threadActive = true;
+	private Thread writerThread;
+	private Thread readerThread;
 	
 	/**
 	 * a Constructor, usually called in the setup() method in your sketch to
@@ -72,29 +128,32 @@ public class D2XX implements Runnable{
 	 * @param baudRate	- how many bauds per second should it use for communication
 	 */
 	public D2XX(PApplet parent,int portIndex,int baudRate) {
+		this(parent, portIndex, baudRate, null);
+	}
+	
+	/**
+	 * a Constructor that also applies a driver profile, such as
+	 * DeviceProfile.LOW_LATENCY, when the device is opened.
+	 * 
+	 * @param parent 	- the parent sketch
+	 * @param portIndex	- the port index to open (depends on how many are available)
+	 * @param baudRate	- how many bauds per second should it use for communication
+	 * @param profile	- the latency timer, transfer sizes, flow control and timeouts to use
+	 */
+	public D2XX(PApplet parent,int portIndex,int baudRate,DeviceProfile profile) {
 		if (parent != null && portIndex >= 0 && baudRate != 0){
 			this.parent = parent;
+			this.profile = profile;
 			this.portIndex = portIndex;
 			this.baudRate = baudRate;
-			initNative();
-		    
-		    listDevices();
-
-		    if (D2XX.devices == null){
-		    	System.err.println("error listing devices");
-		    }
-		    
-			if(D2XX.devices.length > 0 && portIndex < D2XX.devices.length){
+			NativeLoader.load();
+			
+			device = DeviceRegistry.getInstance().getDevice(portIndex);
+			if (device != null){
 				if (openDevice()){
-					isOpen = true;
-					new Thread(this).start();
-					System.out.println("Device successfully openend");
-				}
-				try {
-					this.parent.registerMethod("dispose", this);
-				} catch (Exception e){
-					e.printStackTrace();
+					System.out.println("Device successfully openend in " + getStartupTime() + " ms");
 				}
+				registerWithParent();
 			} else {
 				System.err.println("Trying to initialise with a portIndex larger than available ports!");
 			}
@@ -102,26 +161,84 @@ public class D2XX implements Runnable{
 			System.err.println("Trying to initialise with null args!");
 		}
 	}
-
+	
 	/**
-	 * This method scans and returns a list of connected serial 
-	 * devices of type - "unknown" 
+	 * a Constructor opening a device by its serial number, which unlike the
+	 * port index does not change when devices are plugged in or unplugged.
 	 * 
-	 * @return Devices[] - the list of devices discovered
+	 * @param parent 		- the parent sketch
+	 * @param serialNumber	- the serial number programmed in the device's EEPROM
+	 * @param baudRate		- how many bauds per second should it use for communication
 	 */
-	private static Device[] listDevices(){
-		if (!returnCachedDeviceList){			
-			try {
-				D2XX.devices = Service.listDevicesByType(DeviceType.FT_DEVICE_UNKNOWN);
-				returnCachedDeviceList = true;
-				for (int x = 0; x < D2XX.devices.length; x++){
-					System.out.println(D2XX.devices[x]);
+	public D2XX(PApplet parent,String serialNumber,int baudRate) {
+		if (parent != null && serialNumber != null && baudRate != 0){
+			this.parent = parent;
+			this.portIndex = -1;
+			this.baudRate = baudRate;
+			NativeLoader.load();
+			
+			device = DeviceRegistry.getInstance().findBySerialNumber(serialNumber);
+			if (device != null){
+				if (openDevice()){
+					System.out.println("Device successfully openend in " + getStartupTime() + " ms");
 				}
-			} catch (FTD2xxException e){
-				e.printStackTrace();
+				registerWithParent();
+			} else {
+				System.err.println("No device with serial number " + serialNumber);
+			}
+		} else {
+			System.err.println("Trying to initialise with null args!");
+		}
+	}
+	
+	/**
+	 * a Constructor using a custom transport instead of an FTDI device,
+	 * for instance a LoopbackTransport to run without any hardware attached.
+	 * No native library is loaded. The parent sketch may be null, to run
+	 * without Processing; dispose() must then be called by the caller.
+	 * 
+	 * @param parent 	- the parent sketch, or null
+	 * @param transport	- the link to read from and write to
+	 * @param baudRate	- how many bauds per second should it use for communication
+	 */
+	public D2XX(PApplet parent, Transport transport, int baudRate) {
+		if (transport != null && baudRate != 0){
+			this.parent = parent;
+			this.baudRate = baudRate;
+			this.transport = transport;
+			openTransport();
+			if (parent != null){
+				registerWithParent();
 			}
+		} else {
+			System.err.println("Trying to initialise with null args!");
+		}
+	}
+	
+	/** Registers dispose() with the parent sketch and looks up its optional
+	 *  d2xxEvent(D2XX) callback
+	 */
+	private void registerWithParent(){
+		try {
+			this.parent.registerMethod("dispose", this);
+		} catch (Exception e){
+			e.printStackTrace();
 		}
-		return D2XX.devices;
+		try {
+			d2xxEventMethod = this.parent.getClass().getMethod("d2xxEvent", D2XX.class);
+		} catch (NoSuchMethodException e){
+			// the sketch does not want to be notified of incoming data
+		}
+	}
+
+	/**
+	 * This method returns the list of connected serial devices
+	 * of type - "unknown", as found by the last scan of the DeviceRegistry
+	 * 
+	 * @return Devices[] - the list of devices discovered
+	 */
+	public static Device[] listDevices(){
+		return DeviceRegistry.getInstance().getDevices();
 	}
 
 	/** Finds the requested device in the device list and attempts
@@ -132,26 +249,99 @@ public class D2XX implements Runnable{
 	 */
 	public boolean openDevice(){
 		boolean openingSuccess = false;
-		if (nativeLoaded){
-			if (dev == null){
-				dev = devices[portIndex];
-				try{
-					dev.open();
-					port = dev.getPort();
-					port.setBaudRate(baudRate);
-					openingSuccess = true;
-				}catch(Exception e){
-					System.out.println("caught:");
-					e.printStackTrace();
-					openingSuccess = false;
-				}
+		if (NativeLoader.isLoaded()){
+			if (transport == null && device != null){
+				transport = new FTDITransport(device);
+				openingSuccess = openTransport();
 			} else {
 				System.err.println("Trying to open device thats already open!");
 			}
 		}
 		return openingSuccess;
 	}
+	
+	/** Opens the transport, applies the baud rate and starts the
+	 *  writer and reader threads
+	 * 
+	 * @return boolean - whether the transport was successfully opened
+	 */
+	private boolean openTransport(){
+		try{
+			if (transport instanceof FTDITransport && !driversAcquired){
+				driversAcquired = true;
+				NativeLoader.acquireDrivers();
+			}
+			transport.open();
+			transport.setBaudRate(baudRate);
+			if (profile != null){
+				transport.setProfile(profile);
+			}
+		}catch(Exception e){
+			System.out.println("caught:");
+			e.printStackTrace();
+			if (driversAcquired){
+				driversAcquired = false;
+				NativeLoader.releaseDrivers();
+			}
+			return false;
+		}
+		isOpen = true;
+		sink = transport;
+		writerThread = new Thread(this, "D2XX writer " + transport);
+		writerThread.setDaemon(true);
+		writerThread.start();
+		readerThread = new Thread(new Runnable(){
+			public void run(){
+				readLoop();
+			}
+		}, "D2XX reader " + transport);
+		readerThread.setDaemon(true);
+		readerThread.start();
+		monitor.register();
+		startupNanos = System.nanoTime() - constructedAt;
+		return true;
+	}
+	
+	/** Returns the transport this instance reads from and writes to
+	 * 
+	 * @return Transport - the transport, or null if no device was opened
+	 */
+	public Transport getTransport(){
+		return transport;
+	}
 
+	/** Changes the baud rate of an open connection
+	 * 
+	 * @param newBaudRate
+	 */
+	public void setBaudRate(int newBaudRate){
+		if (newBaudRate > 0){
+			baudRate = newBaudRate;
+			FramePacer p = pacer;
+			if (p != null){
+				p.setLink(baudRate, dataBits, stopBits, parity);
+			}
+			// through the sink, so a capture records the change
+			Transport target = sink;
+			if (target != null && isOpen){
+				try {
+					target.setBaudRate(baudRate);
+				} catch(IOException e){
+					metrics.recordError();
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	/** Returns the configured baud rate
+	 * 
+	 * @return int - bauds per second
+	 */
+	public int getBaudRate(){
+		return baudRate;
+	}
+	
 	/**Method to change the DataBits, StopBits and parity of the connection. 
 	 * 
 	 * @param newDataBits 
@@ -163,356 +353,1413 @@ public class D2XX implements Runnable{
 			dataBits = newDataBits;
 			stopBits = newStopBits;
 			parity = newParity;
-			try {
-				port.setDataCharacteristics(dataBits, stopBits, parity);			
-			} catch(FTD2xxException e){
-				e.printStackTrace();
+			FramePacer p = pacer;
+			if (p != null){
+				p.setLink(baudRate, dataBits, stopBits, parity);
+			}
+			if (transport != null){
+				try {
+					transport.setDataCharacteristics(dataBits, stopBits, parity);			
+				} catch(IOException e){
+					metrics.recordError();
+					e.printStackTrace();
+				}
 			}
 		}
 	}
 	
-	/**Sending an integer to the connected device
+	/** Applies a set of driver settings, such as DeviceProfile.LOW_LATENCY
+	 *  or DeviceProfile.HIGH_THROUGHPUT. Can be called before or after the
+	 *  device is opened; the profile is kept for the lifetime of this instance.
 	 * 
-	 * @param bytes
+	 * @param newProfile
 	 */
-	public void write(int dataByte){
-		if (dataByte > 0){
-			byteToWrite = PApplet.constrain(dataByte, 0, 255);
-			PACKET_TYPE = BYTE;
-		} else {
-			System.err.println("Attempting to write null bytes!");
+	public void setProfile(DeviceProfile newProfile){
+		if (newProfile != null){
+			profile = newProfile;
+			if (transport != null && isOpen){
+				try {
+					transport.setProfile(newProfile);
+				} catch(IOException e){
+					metrics.recordError();
+					e.printStackTrace();
+				}
+			}
 		}
 	}
 	
-	/** Sending an array of bytes to the connected device
+	/** Returns the driver settings in use
 	 * 
-	 * @param bytes
+	 * @return DeviceProfile - the active profile, DeviceProfile.DEFAULT if none was set
 	 */
-	public void write(byte[] dataBytes){
-		if (dataBytes != null){
-			try {
-				bytesToWrite.write(dataBytes);
-			} catch(IOException e){
-				e.printStackTrace();
-			}
-			PACKET_TYPE = BYTES;							
-		} else {
-			System.err.println("Attempting to write null bytes!");
-		}
+	public DeviceProfile getProfile(){
+		DeviceProfile current = profile;
+		return current != null ? current : DeviceProfile.DEFAULT;
 	}
 	
-	/**Sending a particular selection of an array of bytes to the
-	 * connected device.
+	/** Sets how many milliseconds the chip waits before sending a partly
+	 *  filled packet to the host. The FTDI default of 16 ms delays small replies
 	 * 
-	 * @param buffer
-	 * @param offset
-	 * @param length
+	 * @param milliseconds - between 1 and 255
 	 */
-	public void write(byte[] buffer, int offset, int length){
-		if (buffer != null && offset > 0 && length > 0){
-			try {
-				bytesToWrite.write(buffer);
-			} catch(IOException e){
-				e.printStackTrace();
-			}
-			writeOffset = offset;
-			writeLength = length;
-			PACKET_TYPE = BYTES_OFFSET;
-		}else{
-			System.err.println("Attempting to write null information!");
-		}
+	public void setLatencyTimer(int milliseconds){
+		setProfile(getProfile().withLatencyTimer(milliseconds));
 	}
 	
-	/** Reading available data from the connected device
+	/** Sets the USB transfer sizes in bytes, multiples of 64 between 64 and 65536
 	 * 
-	 * @return int - the read data
+	 * @param inTransferSize  - device to host
+	 * @param outTransferSize - host to device
 	 */
-	public int read(){
-		int readData = 0;
-		try {
-			readData = dev.read();
-		} catch(FTD2xxException e){
-			e.printStackTrace();
-		}
-		return readData;
+	public void setUSBTransferSizes(int inTransferSize, int outTransferSize){
+		setProfile(getProfile().withTransferSizes(inTransferSize, outTransferSize));
 	}
 	
-	/** Reading a target amount of the available data from the connected device
+	/** Sets the handshake used on the serial line
 	 * 
-	 * @param target
-	 * @return int - the read data
+	 * @param flowControl
 	 */
-	public int read(byte[] target){
-		int readData = 0;
-		try {
-			readData = dev.read(target);
-		} catch(FTD2xxException e){
-			e.printStackTrace();
-		}
-		return readData;
+	public void setFlowControl(FlowControl flowControl){
+		setProfile(getProfile().withFlowControl(flowControl));
 	}
 	
-	/** Reading a specific amount of the targeted data from the connected device
+	/** Sets the read and write timeouts of the driver in milliseconds, 0 for none
 	 * 
+	 * @param readTimeout
+	 * @param writeTimeout
+	 */
+	public void setTimeouts(long readTimeout, long writeTimeout){
+		setProfile(getProfile().withTimeouts(readTimeout, writeTimeout));
+	}
+	
+	/**Sets what happens to a write when the outgoing queue is full.
+	 * Defaults to OverflowPolicy.DROP_OLDEST
 	 * 
-	 * @param buffer
-	 * @param offset
-	 * @param length
-	 * @return int - the read data
+	 * @param policy
 	 */
-	public int read(byte[] buffer, int offset, int length){
-		int readData = 0;
-		try {
-			readData = dev.read(buffer, offset, length);
-		}catch(FTD2xxException e){
-			e.printStackTrace();
+	public void setOverflowPolicy(OverflowPolicy policy){
+		if (policy != null){
+			writeQueue.setPolicy(policy);
 		}
-		return readData;
 	}
 	
-	/** Returns the connection status of the device
+	/** Returns the current overflow policy of the outgoing queue
 	 * 
-	 * @return boolean - is the device connection open
+	 * @return OverflowPolicy - the active policy
 	 */
-	public boolean isOpen(){
-		return isOpen;
+	public OverflowPolicy getOverflowPolicy(){
+		return writeQueue.getPolicy();
 	}
 	
-	/** Main method that runs continuously in it's own thread. 
-	 *  If there is data ready to send it checks the type of data packet
-	 *  and sends it to the connected device
+	/** Returns how many writes were discarded because the outgoing queue was full
+	 * 
+	 * @return long - the number of dropped writes
 	 */
-	public void run(){
-		while (threadActive){
-			if (dev != null){
-				switch(PACKET_TYPE) {
-					case BYTE:
-						try {
-							dev.write(byteToWrite);
-							byteToWrite = -1;
-						} catch (FTD2xxException e){
-							e.printStackTrace();
-						}
-						PACKET_TYPE = NO_DATA;
-						break;
-					case BYTES:
-						try {
-							dev.write(bytesToWrite.toByteArray());
-							bytesToWrite.reset();
-						} catch (FTD2xxException e){
-							e.printStackTrace();
-						}
-						PACKET_TYPE = NO_DATA;
-						break;
-					case BYTES_OFFSET:
-						try {
-							dev.write(bytesToWrite.toByteArray(), writeOffset, writeLength);
-							bytesToWrite.reset();
-							writeOffset = -1;
-							writeLength = -1;
-						} catch (FTD2xxException e){
-							e.printStackTrace();
-						}
-						PACKET_TYPE = NO_DATA;
-						break;
-					case NO_DATA:
-						break;
-				}
-			}
-			try{			
-				Thread.sleep(SLEEP_TIME);
-			} catch (InterruptedException e){
-				throw new IllegalStateException(e);
-			}
-		}
+	public long getDroppedWrites(){
+		return writeQueue.getDropped();
 	}
 	
-	/**
-	 *  Closes connection to the device on shutdown of the program
+	/** Returns how many writes are waiting to be sent
+	 * 
+	 * @return int - the number of queued writes
 	 */
-	public void dispose(){
-		// close connection to D2XX device
-		try {			
-			dev.close();
-			isOpen = false;
-			System.out.println("Connection closed!");
-		} catch (FTD2xxException e){
-			e.printStackTrace();
-		}
-		// Reload drivers that were unloaded at initialisation
-		if (this.parent.platform == PConstants.MACOSX){
-			if (!hasNativeDrivers()){
-				this.parent.exec("sudo", "kextload", "-b","com.apple.driver.AppleUSBFTDI");				
-			}
-		}
+	public int getQueuedWrites(){
+		return writeQueue.size();
 	}
 	
-	/** 
-	 * A method to remove any conflicting native USB serial drivers
+	/** Returns the time between the most recent write() call and the device
+	 *  accepting its data
+	 * 
+	 * @return long - the latency in nanoseconds
 	 */
-	private void removeDrivers(){
-		if (this.parent.platform == PConstants.LINUX){
-			this.parent.exec("sudo", "rmmod", "ftdi_sio");
-			this.parent.exec("sudo", "rmmod", "usbserial");
-		} else if (this.parent.platform == PConstants.MACOSX){
-			if (hasNativeDrivers()){
-				this.parent.exec("sudo", "kextunload", "-b","com.apple.driver.AppleUSBFTDI");				
-			}
-		}
+	public long getLastWriteLatency(){
+		return metrics.getLastWriteLatency();
 	}
 	
-	/**
-	 * A method to check if the "com.apple.driver.AppleUSBFTDI" driver
-	 * already exists on the system. Snippet found from stackoverflow:
-	 * https://stackoverflow.com/questions/5711084/java-runtime-getruntime-getting-output-from-executing-a-command-line-program
-	 * 
-	 * @return driverStatus - boolean value for presence of USBFTDI drivers
-	 */
-	private boolean hasNativeDrivers(){
-		boolean driverStatus = false;
-		
-		if (this.parent.platform == PConstants.MACOSX){
-			Process proc = null;
-			Runtime rt = Runtime.getRuntime();
-			try {
-				proc = rt.exec("kextstat");
-			}catch (IOException e) {
-				e.printStackTrace();
-			}
-			BufferedReader stdInput = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-			String s = null;
-			String driverlist = null;
-			try {
-			    while ((s = stdInput.readLine()) != null) {
-			    	driverlist += s;
-			    }
-			}catch (IOException e) {
-				e.printStackTrace();
-			}
-			
-			if (driverlist.indexOf("AppleUSBFTDI") >= 0){
-				return true;
-			} else {
-				return false;
-			}
-		}
-		return driverStatus;
+	/** Returns the average time between a write() call and the device
+	 *  accepting its data, since the connection was opened
+	 * 
+	 * @return long - the latency in nanoseconds
+	 */
+	public long getAverageWriteLatency(){
+		return metrics.writeLatency.getMean();
 	}
 	
-	/** A function to load the appropriate ftd2xx library based on the
-	 * platform's operating system. Currently set up for macosx64, windows32, windows64, arm6 and arm7
+	/** Returns the longest time between a write() call and the device
+	 *  accepting its data, since the connection was opened
 	 * 
-	 * initNative, getLibPath and addLibraryPath functions heavily 'inspired by' OpenCV's platform
-	 * specific library loading:
-	 * https://github.com/atduskgreg/opencv-processing/blob/master/src/gab/opencv/OpenCV.java#L395
+	 * @return long - the latency in nanoseconds
 	 */
-	private void initNative(){
-		if (!nativeLoaded){
-			int bitsJVM = this.parent.parseInt(System.getProperty("sun.arch.data.model"));
-			String osArch = System.getProperty("os.arch");
-			String nativeLibPath = getLibPath();
-			String path = null;
-			String fileName = null;
-			
-			if (this.parent.platform == PConstants.WINDOWS){ // If running on a Windows platform
-				path = nativeLibPath + "windows" + bitsJVM;
-				fileName = "ftd2xx";
-				path = path.replaceAll("//", FILE_SEPARATOR);
-			}
-			if (this.parent.platform == PConstants.MACOSX){ // if running on Mac platform
-				removeDrivers();
-				fileName = "ftd2xxj";
-				path = nativeLibPath + "macosx" + bitsJVM;
-			}
-			if (this.parent.platform == PConstants.LINUX){ // if running on Linux platform
-				isArm = osArch.contains("arm");
-				fileName = "ftd2xxj";
-				PATH_SEPARATOR = ":";
-
-				if (isArm){
-					// removing native usb serial drivers
-					removeDrivers();
-					// RPi solution to not have a dependacy on libraries in /usr/local/lib/
-					System.load(nativeLibPath + "arm7/libftd2xx.so");
-				}
-				
-				path = isArm ? nativeLibPath + "arm7" : nativeLibPath + "linux" + bitsJVM;
-			}
-			// make sure the determined path exists
-			try {
-				File libDir = new File(path);
-				if (libDir.exists()) {
-					nativeLibPath = path;
+	public long getMaxWriteLatency(){
+		return metrics.writeLatency.getMax();
+	}
+	
+	/** Enables batching: the writer thread merges queued writes into one
+	 *  transfer of up to maxBytes, waiting at most maxDelayMicros after the
+	 *  oldest of them was written for more to arrive. Many small writes then
+	 *  cost a single USB transaction. Byte order is preserved.
+	 *  A maxBytes of 0 disables batching, which is the default.
+	 * 
+	 * @param maxBytes 		 - the largest transfer to build, for instance 512
+	 * @param maxDelayMicros - how long a write may wait for others, for instance 500
+	 */
+	public void setBatching(int maxBytes, int maxDelayMicros){
+		batchDelayNanos = Math.max(maxDelayMicros, 0) * 1000L;
+		batchSize = Math.max(maxBytes, 0);
+	}
+	
+	/** Returns how many writes were merged into another write's transfer
+	 *  instead of getting a transfer of their own
+	 * 
+	 * @return long - the number of merged writes
+	 */
+	public long getMergedWrites(){
+		return metrics.getMergedWrites();
+	}
+	
+	/** Returns how many write calls were made on the transport
+	 * 
+	 * @return long - the number of transfers
+	 */
+	public long getTransportWrites(){
+		return metrics.getTransportWrites();
+	}
+	
+	/** Switches the device's pins to a bit-bang mode, where every written byte
+	 *  sets the state of the 8 pins, or back to serial with BitBangMode.RESET.
+	 *  See BitBang for streaming whole waveforms
+	 * 
+	 * @param directionMask - one bit per pin, 1 for output and 0 for input
+	 * @param mode			- ASYNCHRONOUS, SYNCHRONOUS or RESET
+	 */
+	public void setBitMode(int directionMask, BitBangMode mode){
+		if (mode != null){
+			bitDirectionMask = directionMask & 0xFF;
+			bitMode = mode;
+			if (transport != null){
+				try {
+					transport.setBitMode(bitDirectionMask, bitMode);
+				} catch(IOException e){
+					metrics.recordError();
+					e.printStackTrace();
 				}
-			} catch (NullPointerException e){
-				System.err.println("Cannot load local version of D2XX!");
-				e.printStackTrace();
-				nativeLoaded = false;
-			}
-			// add library path to java.library.path
-			try {
-				addLibraryPath(nativeLibPath);
-			} catch (Exception e){
-				e.printStackTrace();
-				nativeLoaded = false;
-			}
-			// load the desired library
-			try {
-				System.loadLibrary(fileName);
-				nativeLoaded = true;
-			} catch (UnsatisfiedLinkError e) {
-				e.printStackTrace();
-				nativeLoaded = false;
 			}
 		}
 	}
 	
-	/** Returns the path to the current operating directory of this library
+	/** Returns the bit mode last set
 	 * 
-	 * @return String - path to the current operating directory of this library
+	 * @return BitBangMode - RESET when the device is in serial mode
 	 */
-	private String getLibPath() {
-		URL url = this.getClass().getResource("D2XX.class");
-		if (url!= null){
-			String path = url.toString().replaceAll("%20", " ");
-			int n0 = path.indexOf('/');
-			int n1 = -1;
-			n1 = path.indexOf("D2XX.jar");
-			if (this.parent.platform == PConstants.WINDOWS){
-				// In Windows, path string starts with "jar file/C:/.."
-				// so the substring up to  the first / is removed
-				n0++;
-			}
-			if ((-1 < n0) && (-1 < n1)){
-				return path.substring(n0, n1);
-			} else {
-				return "";
-			}
-		}
-		return "";
+	public BitBangMode getBitMode(){
+		return bitMode;
 	}
 	
-	/** Adds the path determined by initNative() to the java.library.path
+	/** Starts recording every byte sent to the device, with its timestamp,
+	 *  to a capture file that CapturePlayer can play back. Recording goes
+	 *  through a memory-mapped file and adds one copy per write to the writer thread
 	 * 
-	 * @param path - the path to be added to java.library.path
-	 * @throws Exception 
+	 * @param path - the capture file, replaced if it exists
+	 * @return boolean - whether recording started
 	 */
-	private static void addLibraryPath(String path) throws Exception {
-		String originalPath = System.getProperty("java.library.path");
-		
-		if (isArm) {
-			if (originalPath.indexOf("linux32") != -1) {
-				originalPath = originalPath.replaceAll(":[^:]*?linux32", "");
-			}
+	public synchronized boolean startCapture(String path){
+		if (sink == null){
+			System.err.println("Cannot capture a device that is not open!");
+			return false;
 		}
+		stopCapture();
 		try {
-			System.setProperty("java.library.path", originalPath + PATH_SEPARATOR + path);
-		} catch (Exception e){
+			capture = new CaptureRecorder(transport, path, baudRate);
+		} catch (IOException e){
 			e.printStackTrace();
+			return false;
+		}
+		sink = capture;
+		return true;
+	}
+	
+	/** Stops recording and completes the capture file */
+	public synchronized void stopCapture(){
+		if (capture != null){
+			sink = transport;
+			capture.finish();
+			capture = null;
+		}
+	}
+	
+	/** Returns the number of writes recorded since startCapture()
+	 * 
+	 * @return long - the number of recorded writes, 0 when not capturing
+	 */
+	public synchronized long getCapturedFrames(){
+		return capture != null ? capture.getFrames() : 0;
+	}
+	
+	/** Paces writes to a frame rate. The writer thread sends at most one frame
+	 *  per period, and never faster than the baud rate and data characteristics
+	 *  let the wire carry it. Frames written while the previous one waits for
+	 *  its slot replace it, so the newest frame is always the next one sent and
+	 *  latency cannot build up when the sketch writes more than the wire can take.
+	 *  Frames of a FrameSync commit are never replaced, and writes that must not
+	 *  be dropped, such as a CapturePlayer's, are sent as they come. Batching
+	 *  is not applied while pacing
+	 * 
+	 * @param framesPerSecond - the target rate, 0 sends every write as soon as possible
+	 */
+	public void setFrameRate(float framesPerSecond){
+		if (framesPerSecond > 0){
+			FramePacer p = new FramePacer(framesPerSecond);
+			p.setLink(baudRate, dataBits, stopBits, parity);
+			pacer = p;
+		} else {
+			pacer = null;
 		}
-		//set sys_paths to null
-		final Field sysPathsField = ClassLoader.class.getDeclaredField("sys_paths");
-		sysPathsField.setAccessible(true);
-		sysPathsField.set(null, null);
-	}	
+		LockSupport.unpark(writerThread);
+	}
+	
+	/** Returns the frame rate requested with setFrameRate()
+	 * 
+	 * @return float - frames per second, 0 when not pacing
+	 */
+	public float getTargetFrameRate(){
+		FramePacer p = pacer;
+		return p != null ? p.getTargetRate() : 0;
+	}
+	
+	/** Returns the frame rate reached while pacing, measured over the last second.
+	 *  It falls towards 0 while nothing is sent
+	 * 
+	 * @return float - frames per second, 0 when not pacing
+	 */
+	public float getFrameRate(){
+		FramePacer p = pacer;
+		return p != null ? p.getAchievedRate() : 0;
+	}
+	
+	/** Returns the number of frames replaced by a newer one before they were sent
+	 * 
+	 * @return long - the number of superseded frames since pacing was enabled
+	 */
+	public long getSupersededFrames(){
+		FramePacer p = pacer;
+		return p != null ? p.getSuperseded() : 0;
+	}
+	
+	/** Returns the highest frame rate the wire can carry for frames of a given
+	 *  size at the current baud rate and data characteristics
+	 * 
+	 * @param frameLength - number of bytes per frame
+	 * @return float - frames per second
+	 */
+	public float getMaxFrameRate(int frameLength){
+		double bits = FramePacer.bitsPerByte(dataBits, stopBits, parity) * Math.max(frameLength, 1);
+		return (float) (baudRate / bits);
+	}
+	
+	/** Returns a snapshot of the counters of this instance: bytes and writes
+	 *  sent and received, dropped writes, queue depth, latency percentiles,
+	 *  transport errors and how idle the writer thread is. The same figures
+	 *  are published through JMX while the device is open.
+	 * 
+	 * @return D2XXStats - the current figures
+	 */
+	public D2XXStats getStats(){
+		return new D2XXStats(metrics, writeQueue, receiveBuffer);
+	}
+	
+	/**Sending an integer to the connected device
+	 * 
+	 * @param bytes
+	 */
+	public void write(int dataByte){
+		if (dataByte >= 0){
+			Frame frame = writeQueue.claim(1);
+			if (frame != null){
+				frame.data[0] = (byte) Math.min(dataByte, 255);
+				frame.length = 1;
+				publish(frame);
+			}
+		} else {
+			System.err.println("Attempting to write null bytes!");
+		}
+	}
+	
+	/** Sending an array of bytes to the connected device, an empty array is ignored
+	 * 
+	 * @param bytes
+	 */
+	public void write(byte[] dataBytes){
+		if (dataBytes != null){
+			if (dataBytes.length > 0){
+				enqueue(dataBytes, 0, dataBytes.length);
+			}
+		} else {
+			System.err.println("Attempting to write null bytes!");
+		}
+	}
+	
+	/**Sending a particular selection of an array of bytes to the
+	 * connected device.
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 */
+	public void write(byte[] buffer, int offset, int length){
+		if (buffer != null && offset >= 0 && length > 0 && offset + length <= buffer.length){
+			enqueue(buffer, offset, length);
+		}else{
+			System.err.println("Attempting to write null information!");
+		}
+	}
+	
+	/** Sending the remaining bytes of a heap or direct ByteBuffer to the
+	 * connected device. The buffer's position is advanced to its limit,
+	 * an empty buffer is ignored.
+	 * 
+	 * @param buffer
+	 */
+	public void write(ByteBuffer buffer){
+		if (buffer == null){
+			System.err.println("Attempting to write null information!");
+		}else if (buffer.hasRemaining()){
+			int length = buffer.remaining();
+			Frame frame = writeQueue.claim(length);
+			if (frame != null){
+				buffer.get(frame.data, 0, length);
+				frame.length = length;
+				publish(frame);
+			} else {
+				buffer.position(buffer.limit());
+			}
+		}
+	}
+	
+	/** Sends a short control message, such as a blackout or sync command,
+	 *  ahead of every queued write. It goes out as soon as the transfer in
+	 *  progress ends: once urgent writes are in use, other writes are sent in
+	 *  chunks of getChunkSize() bytes so urgent ones can cut in between them.
+	 *  Waits if 16 urgent writes are already queued
+	 * 
+	 * @param dataByte
+	 */
+	public void writeUrgent(int dataByte){
+		if (dataByte >= 0){
+			Frame frame = claimUrgent(1);
+			if (frame != null){
+				frame.data[0] = (byte) Math.min(dataByte, 255);
+				frame.length = 1;
+				publishUrgent(frame);
+			}
+		} else {
+			System.err.println("Attempting to write null bytes!");
+		}
+	}
+	
+	/** Sends a short control message ahead of every queued write
+	 * 
+	 * @param dataBytes
+	 */
+	public void writeUrgent(byte[] dataBytes){
+		if (dataBytes != null){
+			writeUrgent(dataBytes, 0, dataBytes.length);
+		} else {
+			System.err.println("Attempting to write null bytes!");
+		}
+	}
+	
+	/** Sends part of an array as a short control message ahead of every queued write
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 */
+	public void writeUrgent(byte[] buffer, int offset, int length){
+		if (buffer != null && offset >= 0 && length > 0 && offset + length <= buffer.length){
+			Frame frame = claimUrgent(length);
+			if (frame != null){
+				System.arraycopy(buffer, offset, frame.data, 0, length);
+				frame.length = length;
+				publishUrgent(frame);
+			}
+		} else {
+			System.err.println("Attempting to write null information!");
+		}
+	}
+	
+	private Frame claimUrgent(int length){
+		chunking = true;
+		return urgentQueue.claim(length);
+	}
+	
+	private void publishUrgent(Frame frame){
+		frame.timestamp = System.nanoTime();
+		urgentQueue.publish(frame);
+		LockSupport.unpark(writerThread);
+		wakeReader();
+	}
+	
+	/** Sets the largest piece of a write that is sent in one transfer, so
+	 *  urgent writes wait at most for one chunk to go out. Smaller chunks let
+	 *  them through sooner, at the cost of more transfers. Without this call
+	 *  writes are split into 256 byte chunks from the first urgent write on,
+	 *  which may then still wait for the write already being sent
+	 * 
+	 * @param bytes - the chunk size, 0 sends every write in one piece
+	 */
+	public void setChunkSize(int bytes){
+		chunkSize = Math.max(0, bytes);
+		chunking = bytes > 0;
+	}
+	
+	public int getChunkSize(){
+		return chunkSize;
+	}
+	
+	/** Takes a pooled frame that the sketch can fill in place and pass to
+	 *  send(), so the data reaches the device without being copied.
+	 *  Returns null when the queue is full and the overflow policy drops the write.
+	 * 
+	 * @param capacity - the number of bytes that will be written into the frame
+	 * @return Frame - a frame owned by the sketch until it is sent
+	 */
+	public Frame obtainFrame(int capacity){
+		Frame frame = writeQueue.claim(Math.max(capacity, 0));
+		if (frame != null){
+			frame.length = 0;
+		}
+		return frame;
+	}
+	
+	/** Queues a frame previously returned by obtainFrame(). The frame
+	 *  must not be touched by the sketch afterwards.
+	 * 
+	 * @param frame
+	 */
+	public void send(Frame frame){
+		if (frame != null){
+			publish(frame);
+		} else {
+			System.err.println("Attempting to send a null frame!");
+		}
+	}
+	
+	/** Returns a frame from obtainFrame() that will not be sent to the pool,
+	 *  without it reaching the writer thread
+	 * 
+	 * @param frame
+	 */
+	void discardFrame(Frame frame){
+		if (frame != null){
+			writeQueue.recycle(frame);
+		}
+	}
+	
+	/** Grows the pooled frames so that writes up to the given size do not
+	 *  allocate any memory. Call it before other threads start writing.
+	 * 
+	 * @param frameSize - the largest write expected, in bytes
+	 */
+	public void preallocateFrames(int frameSize){
+		writeQueue.preallocate(frameSize);
+	}
+	
+	/** Returns how many times a pooled frame buffer had to be allocated or grown.
+	 *  Once the pool has warmed up this stays constant, meaning writes are allocation free.
+	 * 
+	 * @return long - the number of frame buffer allocations
+	 */
+	public long getFrameAllocations(){
+		return writeQueue.getAllocations();
+	}
+	
+	/** Copies a range of bytes into a pooled frame and queues it for the writer thread
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 */
+	private void enqueue(byte[] buffer, int offset, int length){
+		Frame frame = writeQueue.claim(length);
+		if (frame != null){
+			System.arraycopy(buffer, offset, frame.data, 0, length);
+			frame.length = length;
+			publish(frame);
+		}
+	}
+	
+	/** Queues a write that must not be dropped: waits for a free frame when
+	 *  the queue is full, whatever the overflow policy
+	 * 
+	 * @param buffer - its remaining bytes are written and its position advanced to its limit
+	 * @return boolean - false if the device was closed while waiting
+	 */
+	boolean writeLossless(ByteBuffer buffer){
+		int length = buffer.remaining();
+		Frame frame = obtainFrameLossless(length);
+		if (frame == null){
+			return false;
+		}
+		buffer.get(frame.data, 0, length);
+		frame.length = length;
+		publish(frame);
+		return true;
+	}
+	
+	/** Queues a control operation, such as a break, that the writer thread
+	 *  runs in order with the writes around it. Waits for a free frame when
+	 *  the queue is full, whatever the overflow policy
+	 * 
+	 * @param command  - Frame.BREAK_ON, Frame.BREAK_OFF, Frame.BAUD_RATE or Frame.BIT_MODE
+	 * @param argument - see the command
+	 * @return boolean - false if the device was closed while waiting
+	 */
+	boolean writeCommand(int command, int argument){
+		Frame frame = writeQueue.claim(0, OverflowPolicy.BLOCK);
+		if (frame == null){
+			return false;
+		}
+		frame.length = 0;
+		frame.command = command;
+		frame.argument = argument;
+		publish(frame);
+		return true;
+	}
+	
+	/** Changes the bit mode once the writes queued before have been sent,
+	 *  unlike setBitMode() which applies it straight away
+	 * 
+	 * @param directionMask - one bit per pin, 1 for output and 0 for input
+	 * @param mode
+	 * @return boolean - false if the device was closed while waiting
+	 */
+	boolean writeBitMode(int directionMask, BitBangMode mode){
+		bitDirectionMask = directionMask & 0xFF;
+		bitMode = mode;
+		return writeCommand(Frame.BIT_MODE, mode.ordinal() << 8 | bitDirectionMask);
+	}
+	
+	/** Like obtainFrame(), but waits for a free frame when the queue is
+	 *  full, whatever the overflow policy
+	 * 
+	 * @param capacity - the number of bytes that will be written into the frame
+	 * @return Frame - a frame owned by the caller, or null if the device was closed while waiting
+	 */
+	Frame obtainFrameLossless(int capacity){
+		Frame frame = writeQueue.claim(Math.max(capacity, 0), OverflowPolicy.BLOCK);
+		if (frame != null){
+			frame.length = 0;
+			frame.lossless = true;
+		}
+		return frame;
+	}
+	
+	/** Returns a NIO channel view of this device. Writes to the channel go
+	 *  through the queue and writer thread like every other write, reads take
+	 *  the received data
+	 * 
+	 * @return D2XXChannel - the channel, the same one on every call
+	 */
+	public synchronized D2XXChannel getChannel(){
+		if (channel == null){
+			channel = new D2XXChannel(this);
+		}
+		return channel;
+	}
+	
+	/** Queues a write that must not be dropped, see writeLossless(ByteBuffer)
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return boolean - false if the device was closed while waiting
+	 */
+	boolean writeLossless(byte[] buffer, int offset, int length){
+		Frame frame = writeQueue.claim(length, OverflowPolicy.BLOCK);
+		if (frame == null){
+			return false;
+		}
+		System.arraycopy(buffer, offset, frame.data, 0, length);
+		frame.length = length;
+		frame.lossless = true;
+		publish(frame);
+		return true;
+	}
+	
+	/** Waits until every queued write has been handed to the transport
+	 * 
+	 * @param timeoutNanos
+	 * @return boolean - whether the queue drained in time
+	 */
+	boolean awaitWrites(long timeoutNanos){
+		long deadline = System.nanoTime() + timeoutNanos;
+		while (!writeQueue.isIdle() || !urgentQueue.isIdle()){
+			if (System.nanoTime() - deadline > 0 || !threadActive){
+				return false;
+			}
+			LockSupport.parkNanos(this, READ_POLL_NANOS);
+		}
+		return true;
+	}
+	
+	/** Timestamps a filled frame, queues it and wakes up the writer thread
+	 * 
+	 * @param frame
+	 */
+	private void publish(Frame frame){
+		frame.timestamp = System.nanoTime();
+		writeQueue.publish(frame);
+		LockSupport.unpark(writerThread);
+		wakeReader();
+	}
+	
+	/** Brings a reader thread that is backing off back to short polls, as
+	 *  a write is often answered by the device
+	 */
+	private void wakeReader(){
+		if (readerIdle){
+			readerIdle = false;
+			LockSupport.unpark(readerThread);
+		}
+	}
+	
+	/** Returns the longest the reader thread waits between two reads while
+	 *  nothing arrives: the profile's read timeout, if it sets one
+	 */
+	private long readIdleNanos(){
+		long timeout = getProfile().getReadTimeout();
+		return timeout > 0 ? timeout * 1000000 : READ_IDLE_NANOS;
+	}
+	
+	/** Returns the number of received bytes waiting to be read.
+	 *  Never blocks: data is collected by a background reader thread.
+	 * 
+	 * @return int - the number of bytes available
+	 */
+	public int available(){
+		return receiveBuffer.available();
+	}
+	
+	/** Reading a single received byte
+	 * 
+	 * @return int - the read data as 0..255, or -1 if nothing has been received
+	 */
+	public int read(){
+		return receiveBuffer.read();
+	}
+	
+	/** Reading as much of the received data as fits into target
+	 * 
+	 * @param target
+	 * @return int - the number of bytes read
+	 */
+	public int read(byte[] target){
+		if (target == null){
+			System.err.println("Attempting to read into a null buffer!");
+			return 0;
+		}
+		return receiveBuffer.read(target, 0, target.length);
+	}
+	
+	/** Reading up to length received bytes into a buffer
+	 * 
+	 * 
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return int - the number of bytes read
+	 */
+	public int read(byte[] buffer, int offset, int length){
+		if (buffer == null || offset < 0 || length < 0 || offset + length > buffer.length){
+			System.err.println("Attempting to read into an invalid buffer!");
+			return 0;
+		}
+		return receiveBuffer.read(buffer, offset, length);
+	}
+	
+	/** Returns all received data as a new array
+	 * 
+	 * @return byte[] - the received bytes, or null if nothing has been received
+	 */
+	public byte[] readBytes(){
+		int count = receiveBuffer.available();
+		if (count == 0){
+			return null;
+		}
+		byte[] bytes = new byte[count];
+		receiveBuffer.read(bytes, 0, count);
+		return bytes;
+	}
+	
+	/** Returns the received data up to and including the delimiter as a new array
+	 * 
+	 * @param delimiter
+	 * @return byte[] - the received bytes, or null if the delimiter has not arrived yet
+	 */
+	public byte[] readBytesUntil(int delimiter){
+		int count = receiveBuffer.indexOf((byte) delimiter);
+		if (count < 0){
+			return null;
+		}
+		byte[] bytes = new byte[count];
+		receiveBuffer.read(bytes, 0, count);
+		return bytes;
+	}
+	
+	/** Reads the received data up to and including the delimiter into a buffer
+	 *  without allocating. Nothing is read if the message does not fit.
+	 * 
+	 * @param delimiter
+	 * @param buffer
+	 * @return int - the number of bytes read, or -1 if the delimiter has not arrived yet
+	 */
+	public int readBytesUntil(int delimiter, byte[] buffer){
+		int count = receiveBuffer.indexOf((byte) delimiter);
+		if (count < 0){
+			return -1;
+		}
+		if (buffer == null || count > buffer.length){
+			System.err.println("Buffer too small for readBytesUntil, " + count + " bytes needed!");
+			return 0;
+		}
+		return receiveBuffer.read(buffer, 0, count);
+	}
+	
+	/** Reading received data into a heap or direct ByteBuffer. Never blocks
+	 * 
+	 * @param buffer - receives up to its remaining bytes, its position is advanced
+	 * @return int - the number of bytes read
+	 */
+	public int read(ByteBuffer buffer){
+		if (buffer == null){
+			System.err.println("Attempting to read into an invalid buffer!");
+			return 0;
+		}
+		return receiveBuffer.read(buffer);
+	}
+	
+	/** Discards all received data that has not been read yet
+	 */
+	public void clear(){
+		receiveBuffer.clear();
+	}
+	
+	/** Returns how many received bytes were lost because the sketch did not
+	 *  read them fast enough
+	 * 
+	 * @return long - the number of dropped bytes
+	 */
+	public long getReceiveOverflow(){
+		return receiveBuffer.getOverflow();
+	}
+	
+	/** Returns the connection status of the device
+	 * 
+	 * @return boolean - is the device connection open
+	 */
+	public boolean isOpen(){
+		return isOpen;
+	}
+
+	/** Returns the time it took from calling the constructor until the port
+	 *  was open, which for the first device includes loading the native library
+	 *
+	 * @return float - milliseconds, or -1 if the port was never opened
+	 */
+	public float getStartupTime(){
+		long nanos = startupNanos;
+		return nanos < 0 ? -1 : nanos / 1000000f;
+	}
+
+	/** Returns the time it took to load the native library, once for the whole program
+	 *
+	 * @return float - milliseconds, 0 if it was never loaded
+	 */
+	public static float getNativeLoadTime(){
+		return NativeLoader.getLoadNanos() / 1000000f;
+	}
+
+	/** Main method that runs continuously in it's own thread. 
+	 *  Sends every queued frame to the connected device, oldest first,
+	 *  and parks until the next write() when the queue is empty
+	 */
+	public void run(){
+		metrics.writerStarted();
+		while (threadActive){
+			if (!connected){
+				// new writes wake the thread up, they must not cut the delay short
+				long remaining = reconnectAt - System.nanoTime();
+				if (remaining > 0){
+					LockSupport.parkNanos(this, remaining);
+					continue;
+				}
+				if (!reconnect()){
+					reconnectAt = System.nanoTime() + reconnectDelay;
+					reconnectDelay = Math.min(reconnectDelay * 2, RECONNECT_MAX_NANOS);
+					continue;
+				}
+			}
+			if (writeBatch != null && writeBatch.length > 0){
+				// gathered before the link was lost
+				flush(writeBatch);
+			}
+			sendUrgent();
+			long wait = 0;
+			FramePacer p = pacer;
+			if (p != null){
+				wait = sendPaced(p);
+			} else {
+				if (pacedFrame != null && connected){
+					// pacing was turned off while a frame waited for its slot, or the link went down
+					transmit(pacedFrame);
+					pacedFrame = null;
+				}
+				Frame frame;
+				while (connected && (frame = writeQueue.poll()) != null){
+					sendUrgent();
+					int size = batchSize;
+					if (size > 0 && frame.barrier == null && frame.command == 0 && frame.length < size){
+						sendBatch(frame, size);
+					} else {
+						transmit(frame);
+					}
+				}
+			}
+			long periodicWait = servicePeriodicOutput();
+			if (periodicWait > 0 && (wait <= 0 || periodicWait < wait)){
+				wait = periodicWait;
+			}
+			if (writeQueue.size() == 0 && urgentQueue.size() == 0 && connected){
+				long idleStart = System.nanoTime();
+				if (wait > 0){
+					LockSupport.parkNanos(this, wait);
+				} else {
+					LockSupport.park(this);
+				}
+				metrics.recordIdle(System.nanoTime() - idleStart);
+			}
+			if (Thread.interrupted()){
+				threadActive = false;
+			}
+		}
+	}
+	
+	/** Called by the writer or reader thread when the link fails. With
+	 *  auto reconnect the first failure is reported once and the writer thread
+	 *  starts reopening the link, meanwhile the most recent writes are kept.
+	 *  Without it the failure is reported once and both threads stop; the
+	 *  device counts as closed until dispose() releases it
+	 * 
+	 * @param e - the error thrown by the transport
+	 */
+	private void connectionLost(IOException e){
+		if (markConnectionLost(e)){
+			// outside the lock, the handler completes the sketch's futures
+			ReceiveHandler handler = receiveHandler;
+			if (handler != null){
+				handler.connectionLost(this);
+			}
+		}
+	}
+	
+	/** Records a failure of the link and stops or holds the writes
+	 * 
+	 * @param e - the error thrown by the transport
+	 * @return boolean - whether this is the first report of the loss
+	 */
+	private synchronized boolean markConnectionLost(IOException e){
+		metrics.recordError();
+		if (!autoReconnect){
+			if (threadActive){
+				System.err.println("Connection to " + transport + " lost, closing it");
+				e.printStackTrace();
+				threadActive = false;
+				isOpen = false;
+				writeQueue.close();
+				urgentQueue.close();
+				LockSupport.unpark(writerThread);
+				return true;
+			}
+		} else if (connected && threadActive){
+			connected = false;
+			writeQueue.setHolding(true);
+			urgentQueue.setHolding(true);
+			System.err.println("Connection to " + transport + " lost (" + e.getMessage() + "), reconnecting");
+			LockSupport.unpark(writerThread);
+			return true;
+		}
+		return false;
+	}
+	
+	/** Writer thread: makes one attempt to reopen the link and restore its
+	 *  settings. Holds the lock dispose() closes the link under, so a link
+	 *  closed by dispose() is never opened again
+	 * 
+	 * @return boolean - whether the link is open again
+	 */
+	private boolean reconnect(){
+		synchronized (this){
+			if (!threadActive){
+				return false;
+			}
+			reconnectAttempts++;
+			try {
+				transport.reopen();
+				transport.setBaudRate(baudRate);
+				transport.setDataCharacteristics(dataBits, stopBits, parity);
+				if (profile != null){
+					transport.setProfile(profile);
+				}
+				if (bitMode != BitBangMode.RESET){
+					transport.setBitMode(bitDirectionMask, bitMode);
+				}
+			} catch (IOException e){
+				// retried with a growing delay, only the first failure is reported
+				return false;
+			}
+		}
+		System.err.println("Reconnected to " + transport + " after " + reconnectAttempts + " attempts");
+		reconnectAttempts = 0;
+		reconnectDelay = RECONNECT_MIN_NANOS;
+		reconnects++;
+		writeQueue.setHolding(false);
+		urgentQueue.setHolding(false);
+		connected = true;
+		LockSupport.unpark(readerThread);
+		return true;
+	}
+	
+	/** Sets whether the link is reopened automatically after a failure, such
+	 *  as the cable being pulled. While it is down the writes are kept in the
+	 *  queue, dropping the oldest ones once it is full, and sent once the link
+	 *  is back. Defaults to true
+	 * 
+	 * @param autoReconnect
+	 */
+	public void setAutoReconnect(boolean autoReconnect){
+		this.autoReconnect = autoReconnect;
+	}
+	
+	/** Returns whether the link is up, false while it is being reopened
+	 * 
+	 * @return boolean - the link status
+	 */
+	public boolean isConnected(){
+		return connected;
+	}
+	
+	/** Returns the number of times the link was reopened after a failure
+	 * 
+	 * @return long - the number of reconnects
+	 */
+	public long getReconnects(){
+		return reconnects;
+	}
+	
+	/** Writer thread: keeps only the newest queued frame and sends it once its slot has come
+	 * 
+	 * @param p - the pacer
+	 * @return long - nanoseconds until the waiting frame may be sent, 0 if none is waiting
+	 */
+	private long sendPaced(FramePacer p){
+		Frame frame;
+		while ((frame = writeQueue.poll()) != null){
+			if (pacedFrame != null){
+				if (pacedFrame.barrier == null && pacedFrame.command == 0){
+					writeQueue.recycle(pacedFrame);
+					p.superseded();
+				} else {
+					// the other devices of the commit are waiting for this one,
+					// or a control operation that must not be skipped
+					transmit(pacedFrame);
+				}
+				pacedFrame = null;
+			}
+			if (frame.lossless){
+				// must not be dropped, goes out in order without waiting for a slot
+				transmit(frame);
+			} else {
+				pacedFrame = frame;
+			}
+		}
+		if (pacedFrame == null){
+			return 0;
+		}
+		long now = System.nanoTime();
+		long delay = p.delay(now);
+		if (delay > 0){
+			return delay;
+		}
+		p.sent(pacedFrame.length, now);
+		frame = pacedFrame;
+		pacedFrame = null;
+		transmit(frame);
+		return 0;
+	}
+	
+	/** Lets the periodic output, if any, send what is due
+	 * 
+	 * @return long - nanoseconds until it is due again, 0 if there is none
+	 */
+	private long servicePeriodicOutput(){
+		PeriodicOutput output = periodicOutput;
+		if (output == null){
+			return 0;
+		}
+		try {
+			return Math.max(1, output.service(sink));
+		} catch (IOException e){
+			connectionLost(e);
+			return PERIODIC_ERROR_NANOS;
+		}
+	}
+	
+	/** Decodes the unread bytes of the receive buffer without copying them
+	 * 
+	 * @param decoder
+	 * @return int - the number of bytes decoded
+	 */
+	int decodeReceived(FrameDecoder decoder){
+		return receiveBuffer.decode(decoder);
+	}
+	
+	/** Installs a handler that takes received data on the reader thread.
+	 *  There is one per device, a second one is rejected
+	 * 
+	 * @param handler
+	 * @return boolean - false if another handler is installed
+	 */
+	synchronized boolean setReceiveHandler(ReceiveHandler handler){
+		if (receiveHandler != null && receiveHandler != handler){
+			System.err.println("Received data is already taken by " + receiveHandler.getClass().getSimpleName() + "!");
+			return false;
+		}
+		receiveHandler = handler;
+		return true;
+	}
+	
+	/** Removes a handler installed with setReceiveHandler(), unless another
+	 *  one has been installed since
+	 * 
+	 * @param handler
+	 */
+	synchronized void removeReceiveHandler(ReceiveHandler handler){
+		if (receiveHandler == handler){
+			receiveHandler = null;
+		}
+	}
+	
+	/** Sends the frames other processes publish in a shared ring, from the
+	 *  writer thread. Frames published before this call are not sent. Fails
+	 *  while a DmxOutput or another ring is sending to the device
+	 * 
+	 * @param ring - the ring, or null to stop reading from the current one
+	 * @return boolean - whether the ring is read from
+	 */
+	public boolean setSharedInput(SharedFrameRing ring){
+		if (ring == null){
+			PeriodicOutput output = periodicOutput;
+			if (output instanceof SharedFrameRing){
+				removePeriodicOutput(output);
+			}
+			return false;
+		}
+		return setPeriodicOutput(ring);
+	}
+	
+	/** Installs output that the writer thread generates on its own schedule.
+	 *  There is one per device, a second one is rejected
+	 * 
+	 * @param output
+	 * @return boolean - false if another output is installed
+	 */
+	synchronized boolean setPeriodicOutput(PeriodicOutput output){
+		if (periodicOutput != null && periodicOutput != output){
+			System.err.println("The device is already sending a " + periodicOutput.getClass().getSimpleName() + "!");
+			return false;
+		}
+		periodicOutput = output;
+		LockSupport.unpark(writerThread);
+		return true;
+	}
+	
+	/** Removes output installed with setPeriodicOutput(), unless another
+	 *  one has been installed since
+	 * 
+	 * @param output
+	 */
+	synchronized void removePeriodicOutput(PeriodicOutput output){
+		if (periodicOutput == output){
+			periodicOutput = null;
+			LockSupport.unpark(writerThread);
+		}
+	}
+	
+	/** Sends a single frame and recycles it. Once urgent writes are in use
+	 *  the frame is sent in chunks, with any urgent write sent in between
+	 * 
+	 * @param frame
+	 */
+	private void transmit(Frame frame){
+		if (frame.command != 0){
+			runCommand(frame);
+			writeQueue.recycle(frame);
+			return;
+		}
+		if (frame.barrier != null){
+			// part of a synchronised commit, start together with the other devices
+			frame.barrier.await();
+		}
+		int chunk = chunkSize;
+		if (!chunking || chunk == 0){
+			chunk = Math.max(frame.length, 1);
+		}
+		int offset = 0;
+		try {
+			do {
+				int length = Math.min(chunk, frame.length - offset);
+				long start = System.nanoTime();
+				sink.write(frame.data, offset, length);
+				long end = System.nanoTime();
+				offset += length;
+				if (offset < frame.length){
+					metrics.recordChunk(length, end - start);
+					sendUrgent();
+				} else {
+					metrics.recordTransportWrite(length, 1, end - start);
+					metrics.recordLatency(end - frame.timestamp);
+				}
+			} while (offset < frame.length && connected);
+		} catch (IOException e){
+			connectionLost(e);
+		}
+		writeQueue.recycle(frame);
+	}
+	
+	/** Runs a control operation queued with writeCommand()
+	 * 
+	 * @param frame
+	 */
+	private void runCommand(Frame frame){
+		try {
+			switch (frame.command){
+				case Frame.BREAK_ON:
+					sink.setBreak(true);
+					breakStart = System.nanoTime();
+					break;
+				case Frame.BREAK_OFF:
+					long remaining;
+					while ((remaining = breakStart + frame.argument - System.nanoTime()) > 0){
+						LockSupport.parkNanos(this, remaining);
+					}
+					sink.setBreak(false);
+					break;
+				case Frame.BAUD_RATE:
+					setBaudRate(frame.argument);
+					break;
+				case Frame.BIT_MODE:
+					sink.setBitMode(frame.argument & 0xFF, BitBangMode.values()[frame.argument >>> 8]);
+					break;
+			}
+		} catch (IOException e){
+			connectionLost(e);
+		}
+	}
+	
+	/** Sends every queued urgent write, each in its own transfer */
+	private void sendUrgent(){
+		Frame frame;
+		while (connected && (frame = urgentQueue.poll()) != null){
+			try {
+				long start = System.nanoTime();
+				sink.write(frame.data, 0, frame.length);
+				long end = System.nanoTime();
+				metrics.recordTransportWrite(frame.length, 1, end - start);
+				metrics.recordUrgentLatency(end - frame.timestamp);
+			} catch (IOException e){
+				connectionLost(e);
+			}
+			urgentQueue.recycle(frame);
+		}
+	}
+	
+	/** Merges the given frame and the ones queued after it into batches of up to
+	 *  size bytes, waiting for more writes until the oldest one has been queued
+	 *  for the configured delay
+	 * 
+	 * @param first - a frame smaller than size
+	 * @param size  - the batch size in bytes
+	 */
+	private void sendBatch(Frame first, int size){
+		WriteBatch batch = writeBatch;
+		if (batch == null || batch.capacity() != size){
+			if (batch != null && batch.length > 0){
+				flush(batch);
+			}
+			batch = writeBatch = new WriteBatch(size);
+		}
+		batch.add(first);
+		long deadline = first.timestamp + batchDelayNanos;
+		writeQueue.recycle(first);
+		// once the link is lost the batch is kept and sent after reconnecting
+		while (!batch.isFull() && connected){
+			// urgent writes go ahead of the batch gathered so far
+			sendUrgent();
+			Frame next = writeQueue.poll();
+			if (next == null){
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0 || !threadActive){
+					break;
+				}
+				LockSupport.parkNanos(this, remaining);
+			} else if (next.barrier == null && next.command == 0 && batch.fits(next)){
+				batch.add(next);
+				writeQueue.recycle(next);
+			} else {
+				flush(batch);
+				if (batch.length > 0){
+					// the link was lost, the frame is sent after the kept batch
+					pacedFrame = next;
+					return;
+				}
+				if (next.barrier != null || next.command != 0 || next.length >= size){
+					transmit(next);
+					return;
+				}
+				batch.add(next);
+				deadline = next.timestamp + batchDelayNanos;
+				writeQueue.recycle(next);
+			}
+		}
+		flush(batch);
+	}
+	
+	/** Sends the gathered batch in one transfer and empties it. When the
+	 *  link is down or fails, the batch is kept for the next attempt
+	 * 
+	 * @param batch
+	 */
+	private void flush(WriteBatch batch){
+		if (!connected){
+			return;
+		}
+		try {
+			long start = System.nanoTime();
+			sink.write(batch.data, 0, batch.length);
+			long end = System.nanoTime();
+			metrics.recordTransportWrite(batch.length, batch.frames, end - start);
+			for (int i = 0; i < batch.frames; i++){
+				metrics.recordLatency(end - batch.timestamps[i]);
+			}
+		} catch (IOException e){
+			connectionLost(e);
+			return;
+		}
+		batch.clear();
+	}
+	
+	/** Runs in the reader thread. Drains the device into the receive buffer
+	 *  and notifies the sketch through d2xxEvent(D2XX), if it has one
+	 */
+	private void readLoop(){
+		long idleNanos = READ_POLL_NANOS;
+		while (threadActive){
+			if (!connected){
+				// the writer thread is reopening the link
+				LockSupport.parkNanos(this, READ_ERROR_NANOS);
+				continue;
+			}
+			try {
+				int queued = Math.min(transport.available(), readChunk.length);
+				if (queued > 0){
+					idleNanos = READ_POLL_NANOS;
+					int count = transport.read(readChunk, 0, queued);
+					if (count > 0){
+						metrics.recordRead(count);
+						receiveBuffer.write(readChunk, 0, count);
+						ReceiveHandler handler = receiveHandler;
+						if (handler != null){
+							handler.received(this);
+						}
+						fireD2xxEvent();
+					}
+				} else {
+					// nothing arrives, poll less and less often up to the read timeout
+					readerIdle = true;
+					LockSupport.parkNanos(this, idleNanos);
+					if (readerIdle){
+						readerIdle = false;
+						idleNanos = Math.min(idleNanos * 2, readIdleNanos());
+					} else {
+						idleNanos = READ_POLL_NANOS;
+					}
+				}
+			} catch (IOException e){
+				if (threadActive){
+					connectionLost(e);
+					LockSupport.parkNanos(this, READ_ERROR_NANOS);
+				}
+			}
+		}
+	}
+	
+	/** Calls the sketch's d2xxEvent(D2XX) method. The callback is disabled
+	 *  if it throws, so a broken handler cannot take the reader thread down
+	 */
+	private void fireD2xxEvent(){
+		Method method = d2xxEventMethod;
+		if (method != null){
+			try {
+				method.invoke(parent, this);
+			} catch (Exception e){
+				System.err.println("Error in d2xxEvent(), disabling it.");
+				e.printStackTrace();
+				d2xxEventMethod = null;
+			}
+		}
+	}
+	
+	/**
+	 *  Closes connection to the device on shutdown of the program
+	 */
+	public void dispose(){
+		monitor.unregister();
+		stopCapture();
+		// stop the writer thread
+		threadActive = false;
+		writeQueue.close();
+		urgentQueue.close();
+		// let the writer thread finish its current write, and the reader
+		// thread its current read, before closing the device
+		join(writerThread, WRITER_JOIN_TIMEOUT);
+		join(readerThread, READER_JOIN_TIMEOUT);
+		// close connection to D2XX device, reconnect() does not reopen it afterwards
+		if (transport != null){
+			synchronized (this){
+				try {			
+					transport.close();
+					isOpen = false;
+					System.out.println("Connection closed!");
+				} catch (IOException e){
+					e.printStackTrace();
+				}
+			}
+		}
+		// Reload drivers that were unloaded at initialisation, once no other device is open
+		if (driversAcquired){
+			driversAcquired = false;
+			NativeLoader.releaseDrivers();
+		}
+	}
+	
+	private void join(Thread thread, long timeoutMillis){
+		if (thread != null && thread != Thread.currentThread()){
+			LockSupport.unpark(thread);
+			try {
+				thread.join(timeoutMillis);
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
 }
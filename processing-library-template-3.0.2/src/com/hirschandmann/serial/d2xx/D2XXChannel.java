@@ -0,0 +1,150 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * A NIO channel view of a D2XX device, for piping data from a FileChannel,
+ * a socket or any ByteBuffer straight to the device. Heap and direct buffers
+ * are copied once, into the pooled frames of the write queue, and sent by the
+ * writer thread like every other write.
+ *
+ * Writes wait for room in the queue instead of dropping data, whatever the
+ * overflow policy, and a gathering write puts all its buffers into the same
+ * frame so they reach the device in one transfer. Reads never block, they
+ * take whatever the reader thread has received so far.
+ *
+ * Closing the channel only closes the view, the device stays open until
+ * D2XX.dispose().
+ *
+ * <pre>
+ * FileChannel file = FileChannel.open(path);
+ * file.transferTo(0, file.size(), d2xx.getChannel());
+ * </pre>
+ */
+public class D2XXChannel implements ByteChannel, GatheringByteChannel, ScatteringByteChannel {
+
+	// largest frame a write is split into
+	public static final int MAX_FRAME_SIZE = 65536;
+
+	private final D2XX d2xx;
+	private volatile boolean open = true;
+
+	D2XXChannel(D2XX d2xx){
+		this.d2xx = d2xx;
+	}
+
+	/** Queues the remaining bytes of a buffer, waiting for room in the queue if needed
+	 *
+	 * @param source - a heap or direct buffer, its position is advanced to its limit
+	 * @return int - the number of bytes queued
+	 */
+	public int write(ByteBuffer source) throws IOException {
+		return (int) write(new ByteBuffer[]{ source }, 0, 1);
+	}
+
+	public long write(ByteBuffer[] sources) throws IOException {
+		return write(sources, 0, sources.length);
+	}
+
+	/** Queues the remaining bytes of several buffers, packed together into
+	 *  frames of up to MAX_FRAME_SIZE bytes
+	 *
+	 * @param sources
+	 * @param offset - the first buffer to take bytes from
+	 * @param length - the number of buffers
+	 * @return long - the number of bytes queued
+	 */
+	public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+		checkOpen();
+		if (offset < 0 || length < 0 || offset + length > sources.length){
+			throw new IndexOutOfBoundsException();
+		}
+		long total = 0;
+		for (int i = offset; i < offset + length; i++){
+			total += sources[i].remaining();
+		}
+		long written = 0;
+		int index = offset;
+		while (written < total){
+			Frame frame = d2xx.obtainFrameLossless((int) Math.min(total - written, MAX_FRAME_SIZE));
+			if (frame == null){
+				throw new ClosedChannelException();
+			}
+			int filled = 0;
+			int capacity = Math.min(frame.capacity(), MAX_FRAME_SIZE);
+			while (filled < capacity && index < offset + length){
+				ByteBuffer source = sources[index];
+				int count = Math.min(source.remaining(), capacity - filled);
+				source.get(frame.data, filled, count);
+				filled += count;
+				if (!source.hasRemaining()){
+					index++;
+				}
+			}
+			frame.length = filled;
+			d2xx.send(frame);
+			written += filled;
+		}
+		return written;
+	}
+
+	/** Takes received bytes. Never blocks
+	 *
+	 * @param target - a heap or direct buffer, its position is advanced
+	 * @return int - the number of bytes read, 0 if nothing has been received
+	 * @throws ClosedChannelException once closed
+	 */
+	public int read(ByteBuffer target) throws IOException {
+		checkOpen();
+		return d2xx.read(target);
+	}
+
+	public long read(ByteBuffer[] targets) throws IOException {
+		return read(targets, 0, targets.length);
+	}
+
+	/** Takes received bytes into several buffers, filling them in order. Never blocks
+	 *
+	 * @param targets
+	 * @param offset - the first buffer to fill
+	 * @param length - the number of buffers
+	 * @return long - the number of bytes read
+	 * @throws ClosedChannelException once closed
+	 */
+	public long read(ByteBuffer[] targets, int offset, int length) throws IOException {
+		checkOpen();
+		if (offset < 0 || length < 0 || offset + length > targets.length){
+			throw new IndexOutOfBoundsException();
+		}
+		long total = 0;
+		for (int i = offset; i < offset + length; i++){
+			int count = d2xx.read(targets[i]);
+			total += count;
+			if (targets[i].hasRemaining()){
+				// nothing more has been received
+				break;
+			}
+		}
+		return total;
+	}
+
+	public boolean isOpen(){
+		return open && d2xx.isOpen();
+	}
+
+	/** Closes this view, the device itself stays open */
+	public void close(){
+		open = false;
+	}
+
+	private void checkOpen() throws ClosedChannelException {
+		if (!isOpen()){
+			throw new ClosedChannelException();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package com.hirschandmann.serial.d2xx;
+
+/**
+ * JMX view of a D2XX instance's counters, registered under
+ * com.hirschandmann.serial.d2xx:type=D2XX,name=... while the device is open,
+ * so they can be watched with jconsole or VisualVM. Durations are in nanoseconds.
+ */
+public interface D2XXMXBean {
+
+	long getBytesWritten();
+
+	long getFramesWritten();
+
+	long getTransportWrites();
+
+	long getMergedWrites();
+
+	long getDroppedWrites();
+
+	int getQueueDepth();
+
+	int getMaxQueueDepth();
+
+	long getBytesRead();
+
+	long getTransportReads();
+
+	long getReceiveOverflow();
+
+	long getErrors();
+
+	long getWriteLatencyP50();
+
+	long getWriteLatencyP99();
+
+	long getWriteLatencyMax();
+
+	long getUrgentLatencyP50();
+
+	long getUrgentLatencyP99();
+
+	long getUrgentLatencyMax();
+
+	long getTransportWriteP50();
+
+	long getTransportWriteP99();
+
+	double getWriterIdleRatio();
+}
@@ -0,0 +1,209 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.util.ArrayList;
+
+import com.ftdichip.ftd2xx.Device;
+
+import processing.core.*;
+
+/**
+ * Drives several FTDI ports from one sketch. Every opened device gets its own
+ * D2XX instance, with its own queue, writer thread and reader thread, so writes
+ * to different devices never wait on each other. The native library is loaded
+ * and the device list is scanned once for all of them.
+ *
+ * Devices are addressed by the id returned when they are opened, in the order
+ * they were opened, starting at 0.
+ *
+ * @example MultiDevice
+ */
+public class D2XXManager {
+
+	// reference to the parent sketch
+	PApplet parent;
+
+	private final int baudRate;
+	private final ArrayList<D2XX> outputs = new ArrayList<D2XX>();
+	private DeviceProfile profile;
+
+	/**
+	 * @param parent 	- the parent sketch, or null when running without Processing
+	 * @param baudRate	- the baud rate used for every device opened by this manager
+	 */
+	public D2XXManager(PApplet parent, int baudRate){
+		this.parent = parent;
+		this.baudRate = baudRate;
+		if (parent != null){
+			parent.registerMethod("dispose", this);
+		}
+	}
+
+	/** Opens the device at the given position in the list of connected devices
+	 *
+	 * @param portIndex - the position in the device list
+	 * @return int - the id of the opened device, or -1 if it could not be opened
+	 */
+	public int openByIndex(int portIndex){
+		Device device = loadNative() ? DeviceRegistry.getInstance().getDevice(portIndex) : null;
+		if (device == null){
+			System.err.println("Trying to open a portIndex larger than available ports!");
+			return -1;
+		}
+		return open(device);
+	}
+
+	/** Opens the device with the given serial number
+	 *
+	 * @param serialNumber - the serial number programmed in the device's EEPROM
+	 * @return int - the id of the opened device, or -1 if it could not be opened
+	 */
+	public int openBySerialNumber(String serialNumber){
+		if (serialNumber == null || !loadNative()){
+			return -1;
+		}
+		Device device = DeviceRegistry.getInstance().findBySerialNumber(serialNumber);
+		if (device != null){
+			return open(device);
+		}
+		System.err.println("No device with serial number " + serialNumber);
+		return -1;
+	}
+
+	/** Opens the first device with the given product description
+	 *
+	 * @param description - the product description programmed in the device's EEPROM
+	 * @return int - the id of the opened device, or -1 if it could not be opened
+	 */
+	public int openByDescription(String description){
+		if (description == null || !loadNative()){
+			return -1;
+		}
+		Device device = DeviceRegistry.getInstance().findByDescription(description);
+		if (device != null){
+			return open(device);
+		}
+		System.err.println("No available device with description " + description);
+		return -1;
+	}
+
+	/** Adds a device backed by a custom transport, for instance a LoopbackTransport
+	 *
+	 * @param transport - the link to read from and write to
+	 * @return int - the id of the opened device, or -1 if it could not be opened
+	 */
+	public int add(Transport transport){
+		D2XX d2xx = new D2XX(null, transport, baudRate);
+		if (!d2xx.isOpen()){
+			return -1;
+		}
+		synchronized (outputs){
+			if (profile != null){
+				d2xx.setProfile(profile);
+			}
+			outputs.add(d2xx);
+			return outputs.size() - 1;
+		}
+	}
+
+	/** Applies a driver profile, such as DeviceProfile.LOW_LATENCY, to every
+	 *  device already opened and to every device opened later
+	 *
+	 * @param profile
+	 */
+	public void setProfile(DeviceProfile profile){
+		synchronized (outputs){
+			this.profile = profile;
+			for (int i = 0; i < outputs.size(); i++){
+				outputs.get(i).setProfile(profile);
+			}
+		}
+	}
+
+	/** Queues a frame for the given device. Returns immediately, the frame is
+	 *  sent by the device's own writer thread
+	 *
+	 * @param deviceId - an id returned by one of the open methods
+	 * @param bytes
+	 */
+	public void writeFrame(int deviceId, byte[] bytes){
+		D2XX d2xx = get(deviceId);
+		if (d2xx != null){
+			d2xx.write(bytes);
+		}
+	}
+
+	/** Queues a range of a frame for the given device
+	 *
+	 * @param deviceId - an id returned by one of the open methods
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 */
+	public void writeFrame(int deviceId, byte[] buffer, int offset, int length){
+		D2XX d2xx = get(deviceId);
+		if (d2xx != null){
+			d2xx.write(buffer, offset, length);
+		}
+	}
+
+	/** Returns the D2XX instance driving a device, to configure it or read from it
+	 *
+	 * @param deviceId - an id returned by one of the open methods
+	 * @return D2XX - the device, or null if the id is unknown
+	 */
+	public D2XX get(int deviceId){
+		synchronized (outputs){
+			if (deviceId < 0 || deviceId >= outputs.size()){
+				System.err.println("Unknown device id " + deviceId);
+				return null;
+			}
+			return outputs.get(deviceId);
+		}
+	}
+
+	/** Creates a double-buffered group of all devices opened so far, whose
+	 *  frames are released to the wire together by FrameSync.commit()
+	 *
+	 * @return FrameSync - the group, device ids are the back buffer indices
+	 */
+	public FrameSync createFrameSync(){
+		synchronized (outputs){
+			return new FrameSync(outputs.toArray(new D2XX[outputs.size()]));
+		}
+	}
+
+	/** Returns the number of devices opened by this manager
+	 *
+	 * @return int - the number of devices
+	 */
+	public int size(){
+		synchronized (outputs){
+			return outputs.size();
+		}
+	}
+
+	/**
+	 *  Closes every device on shutdown of the program. The operating system's
+	 *  drivers are put back by the last device closed, not by the manager
+	 */
+	public void dispose(){
+		synchronized (outputs){
+			for (int i = 0; i < outputs.size(); i++){
+				outputs.get(i).dispose();
+			}
+			outputs.clear();
+		}
+	}
+
+	private int open(Device device){
+		if (device.isOpen()){
+			System.err.println("Trying to open device thats already open!");
+			return -1;
+		}
+		return add(new FTDITransport(device));
+	}
+
+	private boolean loadNative(){
+		return NativeLoader.load();
+	}
+}
@@ -0,0 +1,128 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the counters of a D2XX instance through JMX
+ */
+class D2XXMonitor implements D2XXMXBean {
+
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	private final D2XX d2xx;
+	private ObjectName name;
+
+	D2XXMonitor(D2XX d2xx){
+		this.d2xx = d2xx;
+	}
+
+	/** Registers with the platform MBean server. Failures are reported and ignored,
+	 *  monitoring is never a reason for the device not to work
+	 */
+	void register(){
+		try {
+			String label = ObjectName.quote(instances.getAndIncrement() + " " + d2xx.getTransport());
+			name = new ObjectName("com.hirschandmann.serial.d2xx:type=D2XX,name=" + label);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(this, name);
+		} catch (Exception e){
+			System.err.println("Could not register D2XX with JMX: " + e);
+			name = null;
+		}
+	}
+
+	void unregister(){
+		if (name != null){
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (Exception e){
+				System.err.println("Could not unregister D2XX from JMX: " + e);
+			}
+			name = null;
+		}
+	}
+
+	public long getBytesWritten(){
+		return d2xx.getStats().getBytesWritten();
+	}
+
+	public long getFramesWritten(){
+		return d2xx.getStats().getFramesWritten();
+	}
+
+	public long getTransportWrites(){
+		return d2xx.getStats().getTransportWrites();
+	}
+
+	public long getMergedWrites(){
+		return d2xx.getStats().getMergedWrites();
+	}
+
+	public long getDroppedWrites(){
+		return d2xx.getStats().getDroppedWrites();
+	}
+
+	public int getQueueDepth(){
+		return d2xx.getStats().getQueueDepth();
+	}
+
+	public int getMaxQueueDepth(){
+		return d2xx.getStats().getMaxQueueDepth();
+	}
+
+	public long getBytesRead(){
+		return d2xx.getStats().getBytesRead();
+	}
+
+	public long getTransportReads(){
+		return d2xx.getStats().getTransportReads();
+	}
+
+	public long getReceiveOverflow(){
+		return d2xx.getStats().getReceiveOverflow();
+	}
+
+	public long getErrors(){
+		return d2xx.getStats().getErrors();
+	}
+
+	public long getWriteLatencyP50(){
+		return d2xx.getStats().getWriteLatencyP50();
+	}
+
+	public long getWriteLatencyP99(){
+		return d2xx.getStats().getWriteLatencyP99();
+	}
+
+	public long getWriteLatencyMax(){
+		return d2xx.getStats().getWriteLatencyMax();
+	}
+
+	public long getUrgentLatencyP50(){
+		return d2xx.getStats().getUrgentLatencyP50();
+	}
+
+	public long getUrgentLatencyP99(){
+		return d2xx.getStats().getUrgentLatencyP99();
+	}
+
+	public long getUrgentLatencyMax(){
+		return d2xx.getStats().getUrgentLatencyMax();
+	}
+
+	public long getTransportWriteP50(){
+		return d2xx.getStats().getTransportWriteP50();
+	}
+
+	public long getTransportWriteP99(){
+		return d2xx.getStats().getTransportWriteP99();
+	}
+
+	public double getWriterIdleRatio(){
+		return d2xx.getStats().getWriterIdleRatio();
+	}
+}
@@ -0,0 +1,175 @@
+package com.hirschandmann.serial.d2xx;
+
+/**
+ * A snapshot of the counters of one D2XX instance, returned by D2XX.getStats().
+ * Durations are in nanoseconds.
+ *
+ * <pre>
+ * println(d2xx.getStats());
+ * </pre>
+ */
+public class D2XXStats {
+
+	private final long bytesWritten;
+	private final long framesWritten;
+	private final long transportWrites;
+	private final long mergedWrites;
+	private final long droppedWrites;
+	private final int queueDepth;
+	private final int maxQueueDepth;
+	private final long bytesRead;
+	private final long transportReads;
+	private final long receiveOverflow;
+	private final long errors;
+	private final long writeLatencyP50;
+	private final long writeLatencyP99;
+	private final long writeLatencyMax;
+	private final long urgentLatencyP50;
+	private final long urgentLatencyP99;
+	private final long urgentLatencyMax;
+	private final long transportWriteP50;
+	private final long transportWriteP99;
+	private final long transportWriteMax;
+	private final double writerIdleRatio;
+
+	D2XXStats(IOMetrics metrics, WriteQueue queue, ReceiveBuffer receiveBuffer){
+		bytesWritten = metrics.getBytesWritten();
+		framesWritten = metrics.getFramesWritten();
+		transportWrites = metrics.getTransportWrites();
+		mergedWrites = metrics.getMergedWrites();
+		droppedWrites = queue.getDropped();
+		queueDepth = queue.size();
+		maxQueueDepth = queue.getMaxDepth();
+		bytesRead = metrics.getBytesRead();
+		transportReads = metrics.getTransportReads();
+		receiveOverflow = receiveBuffer.getOverflow();
+		errors = metrics.getErrors();
+		writeLatencyP50 = metrics.writeLatency.percentile(0.5);
+		writeLatencyP99 = metrics.writeLatency.percentile(0.99);
+		writeLatencyMax = metrics.writeLatency.getMax();
+		urgentLatencyP50 = metrics.urgentLatency.percentile(0.5);
+		urgentLatencyP99 = metrics.urgentLatency.percentile(0.99);
+		urgentLatencyMax = metrics.urgentLatency.getMax();
+		transportWriteP50 = metrics.transportWriteTime.percentile(0.5);
+		transportWriteP99 = metrics.transportWriteTime.percentile(0.99);
+		transportWriteMax = metrics.transportWriteTime.getMax();
+		writerIdleRatio = metrics.getWriterIdleRatio();
+	}
+
+	/** Bytes handed to the transport */
+	public long getBytesWritten(){
+		return bytesWritten;
+	}
+
+	/** Writes handed to the transport, alone or merged with others */
+	public long getFramesWritten(){
+		return framesWritten;
+	}
+
+	/** Calls made to transport.write() */
+	public long getTransportWrites(){
+		return transportWrites;
+	}
+
+	/** Writes that were merged into another write's transfer */
+	public long getMergedWrites(){
+		return mergedWrites;
+	}
+
+	/** Writes discarded because the queue was full */
+	public long getDroppedWrites(){
+		return droppedWrites;
+	}
+
+	/** Writes waiting in the queue when the snapshot was taken */
+	public int getQueueDepth(){
+		return queueDepth;
+	}
+
+	/** The deepest the queue has been */
+	public int getMaxQueueDepth(){
+		return maxQueueDepth;
+	}
+
+	/** Bytes received from the transport */
+	public long getBytesRead(){
+		return bytesRead;
+	}
+
+	/** Calls to transport.read() that returned data */
+	public long getTransportReads(){
+		return transportReads;
+	}
+
+	/** Received bytes lost because the sketch did not read them in time */
+	public long getReceiveOverflow(){
+		return receiveOverflow;
+	}
+
+	/** Exceptions thrown by the transport */
+	public long getErrors(){
+		return errors;
+	}
+
+	/** Median time from write() to the transport accepting the data */
+	public long getWriteLatencyP50(){
+		return writeLatencyP50;
+	}
+
+	/** 99th percentile of the time from write() to the transport accepting the data */
+	public long getWriteLatencyP99(){
+		return writeLatencyP99;
+	}
+
+	/** Longest time from write() to the transport accepting the data */
+	public long getWriteLatencyMax(){
+		return writeLatencyMax;
+	}
+
+	/** Median time from writeUrgent() to the transport accepting the data */
+	public long getUrgentLatencyP50(){
+		return urgentLatencyP50;
+	}
+
+	/** 99th percentile of the time from writeUrgent() to the transport accepting the data */
+	public long getUrgentLatencyP99(){
+		return urgentLatencyP99;
+	}
+
+	/** Longest time from writeUrgent() to the transport accepting the data */
+	public long getUrgentLatencyMax(){
+		return urgentLatencyMax;
+	}
+
+	/** Median duration of a transport.write() call */
+	public long getTransportWriteP50(){
+		return transportWriteP50;
+	}
+
+	/** 99th percentile of the duration of a transport.write() call */
+	public long getTransportWriteP99(){
+		return transportWriteP99;
+	}
+
+	/** Longest transport.write() call */
+	public long getTransportWriteMax(){
+		return transportWriteMax;
+	}
+
+	/** Fraction of time the writer thread had nothing to send, between 0 and 1 */
+	public double getWriterIdleRatio(){
+		return writerIdleRatio;
+	}
+
+	public String toString(){
+		return "written " + bytesWritten + " bytes in " + framesWritten + " writes / " + transportWrites + " transfers"
+				+ " (merged " + mergedWrites + ", dropped " + droppedWrites + ")"
+				+ ", queue " + queueDepth + " (max " + maxQueueDepth + ")"
+				+ ", read " + bytesRead + " bytes in " + transportReads + " transfers (overflow " + receiveOverflow + ")"
+				+ ", errors " + errors
+				+ ", latency p50 " + writeLatencyP50 / 1000 + " us p99 " + writeLatencyP99 / 1000 + " us max " + writeLatencyMax / 1000 + " us"
+				+ ", urgent latency p50 " + urgentLatencyP50 / 1000 + " us p99 " + urgentLatencyP99 / 1000 + " us max " + urgentLatencyMax / 1000 + " us"
+				+ ", transport write p50 " + transportWriteP50 / 1000 + " us p99 " + transportWriteP99 / 1000 + " us"
+				+ ", writer idle " + Math.round(writerIdleRatio * 100) + "%";
+	}
+}
@@ -0,0 +1,24 @@
+package com.hirschandmann.serial.d2xx;
+
+import com.ftdichip.ftd2xx.Device;
+
+/**
+ * Receives the devices plugged in and unplugged, as found by the
+ * DeviceRegistry. Callbacks run on the registry's scanning thread.
+ */
+public interface DeviceListener {
+
+	/** Called when a device shows up in the device list
+	 *
+	 * @param serialNumber - the serial number programmed in the device's EEPROM
+	 * @param device
+	 */
+	void deviceAttached(String serialNumber, Device device);
+
+	/** Called when a device is no longer in the device list
+	 *
+	 * @param serialNumber - the serial number programmed in the device's EEPROM
+	 * @param device
+	 */
+	void deviceDetached(String serialNumber, Device device);
+}
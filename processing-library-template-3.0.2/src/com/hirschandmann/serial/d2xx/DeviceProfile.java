@@ -0,0 +1,134 @@
+package com.hirschandmann.serial.d2xx;
+
+import com.ftdichip.ftd2xx.FlowControl;
+
+/**
+ * A set of FTDI driver settings that trade latency against throughput:
+ * the latency timer, the USB transfer sizes, flow control and read/write
+ * timeouts. Profiles are immutable; the with methods return modified copies.
+ *
+ * <pre>
+ * d2xx.setProfile(DeviceProfile.LOW_LATENCY);
+ * d2xx.setProfile(DeviceProfile.HIGH_THROUGHPUT.withFlowControl(FlowControl.RTS_CTS));
+ * </pre>
+ */
+public class DeviceProfile {
+
+	/** Leaves a timeout as the driver has it */
+	public static final long UNCHANGED = -1;
+
+	/** The FTDI driver defaults: 16 ms latency timer and 4 KB transfers, the
+	 *  timeouts are left as the driver has them */
+	public static final DeviceProfile DEFAULT = new DeviceProfile(16, 4096, 4096, FlowControl.NONE, UNCHANGED, UNCHANGED);
+
+	/** Shortest round trips: 1 ms latency timer and single packet transfers, so
+	 *  small replies are handed to the host as soon as they arrive. Writes
+	 *  never time out, as large writes at low baud rates take long on the
+	 *  wire and a timeout counts as a link failure */
+	public static final DeviceProfile LOW_LATENCY = new DeviceProfile(1, 64, 64, FlowControl.NONE, 50, 0);
+
+	/** Long streams: large transfers so the USB link carries as many bytes per
+	 *  transaction as possible. Writes never time out, a 64 KB transfer
+	 *  alone takes seconds at DMX speed */
+	public static final DeviceProfile HIGH_THROUGHPUT = new DeviceProfile(16, 65536, 65536, FlowControl.NONE, 1000, 0);
+
+	private final int latencyTimer;
+	private final int inTransferSize;
+	private final int outTransferSize;
+	private final FlowControl flowControl;
+	private final long readTimeout;
+	private final long writeTimeout;
+
+	/**
+	 * @param latencyTimer 	  - milliseconds the chip waits before sending a partly filled packet to the host, 1..255
+	 * @param inTransferSize  - USB transfer size from the device to the host in bytes, a multiple of 64 between 64 and 65536
+	 * @param outTransferSize - USB transfer size from the host to the device in bytes, a multiple of 64 between 64 and 65536
+	 * @param flowControl 	  - the handshake used on the serial line
+	 * @param readTimeout 	  - read timeout in milliseconds, 0 for none or UNCHANGED
+	 * @param writeTimeout 	  - write timeout in milliseconds, 0 for none or UNCHANGED
+	 */
+	public DeviceProfile(int latencyTimer, int inTransferSize, int outTransferSize, FlowControl flowControl, long readTimeout, long writeTimeout){
+		if (latencyTimer < 1 || latencyTimer > 255){
+			throw new IllegalArgumentException("latencyTimer must be between 1 and 255 ms");
+		}
+		checkTransferSize(inTransferSize);
+		checkTransferSize(outTransferSize);
+		if (flowControl == null){
+			throw new IllegalArgumentException("flowControl must not be null");
+		}
+		if (readTimeout < UNCHANGED || writeTimeout < UNCHANGED){
+			throw new IllegalArgumentException("timeouts must not be negative");
+		}
+		this.latencyTimer = latencyTimer;
+		this.inTransferSize = inTransferSize;
+		this.outTransferSize = outTransferSize;
+		this.flowControl = flowControl;
+		this.readTimeout = readTimeout;
+		this.writeTimeout = writeTimeout;
+	}
+
+	private static void checkTransferSize(int size){
+		if (size < 64 || size > 65536 || size % 64 != 0){
+			throw new IllegalArgumentException("transfer sizes must be a multiple of 64 between 64 and 65536");
+		}
+	}
+
+	/** Returns the latency timer in milliseconds */
+	public int getLatencyTimer(){
+		return latencyTimer;
+	}
+
+	/** Returns the device to host USB transfer size in bytes */
+	public int getInTransferSize(){
+		return inTransferSize;
+	}
+
+	/** Returns the host to device USB transfer size in bytes */
+	public int getOutTransferSize(){
+		return outTransferSize;
+	}
+
+	/** Returns the handshake used on the serial line */
+	public FlowControl getFlowControl(){
+		return flowControl;
+	}
+
+	/** Returns the read timeout in milliseconds, 0 for none or UNCHANGED */
+	public long getReadTimeout(){
+		return readTimeout;
+	}
+
+	/** Returns the write timeout in milliseconds, 0 for none or UNCHANGED */
+	public long getWriteTimeout(){
+		return writeTimeout;
+	}
+
+	/** Returns a copy of this profile with another latency timer */
+	public DeviceProfile withLatencyTimer(int latencyTimer){
+		return new DeviceProfile(latencyTimer, inTransferSize, outTransferSize, flowControl, readTimeout, writeTimeout);
+	}
+
+	/** Returns a copy of this profile with other USB transfer sizes */
+	public DeviceProfile withTransferSizes(int inTransferSize, int outTransferSize){
+		return new DeviceProfile(latencyTimer, inTransferSize, outTransferSize, flowControl, readTimeout, writeTimeout);
+	}
+
+	/** Returns a copy of this profile with another flow control */
+	public DeviceProfile withFlowControl(FlowControl flowControl){
+		return new DeviceProfile(latencyTimer, inTransferSize, outTransferSize, flowControl, readTimeout, writeTimeout);
+	}
+
+	/** Returns a copy of this profile with other read and write timeouts */
+	public DeviceProfile withTimeouts(long readTimeout, long writeTimeout){
+		return new DeviceProfile(latencyTimer, inTransferSize, outTransferSize, flowControl, readTimeout, writeTimeout);
+	}
+
+	public String toString(){
+		return "DeviceProfile latency " + latencyTimer + " ms, transfers " + inTransferSize + "/" + outTransferSize
+				+ " bytes, flow control " + flowControl + ", timeouts " + timeout(readTimeout) + "/" + timeout(writeTimeout);
+	}
+
+	private static String timeout(long milliseconds){
+		return milliseconds == UNCHANGED ? "unchanged" : milliseconds + " ms";
+	}
+}
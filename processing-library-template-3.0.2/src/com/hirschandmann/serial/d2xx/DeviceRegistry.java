@@ -0,0 +1,333 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ftdichip.ftd2xx.*;
+
+/**
+ * The list of connected FTDI devices, shared by every D2XX and D2XXManager.
+ *
+ * The list is scanned once when first used and then again on rescan(), or
+ * periodically on a background thread after setRescanInterval(). Every scan
+ * is compared with the previous one by serial number: devices that stay
+ * connected keep their Device instance and their position, and listeners
+ * are told about the devices that were plugged in or unplugged.
+ *
+ * Listing opens every device to read its serial number, which fails for
+ * devices that are already open. Devices open in this program are carried
+ * over from the previous scan, and a known device that cannot be opened is
+ * taken to be held by another program rather than unplugged.
+ *
+ * Lookups by serial number or description read the last scan and never
+ * enumerate the bus themselves.
+ *
+ * @example ListDevices
+ */
+public class DeviceRegistry {
+
+	private static DeviceRegistry instance;
+
+	// the result of one scan, replaced as a whole so readers never lock
+	private volatile Snapshot snapshot = new Snapshot(new Device[0], new String[0], new String[0]);
+	private final CopyOnWriteArrayList<DeviceListener> listeners = new CopyOnWriteArrayList<DeviceListener>();
+
+	private volatile long rescanNanos;
+	// reported once until a listing succeeds again
+	private boolean listingFailed;
+	private Thread scanThread;
+
+	/** Returns the registry, scanning the device list the first time it is called
+	 *
+	 * @return DeviceRegistry - the registry shared by the whole program
+	 */
+	public static synchronized DeviceRegistry getInstance(){
+		if (instance == null){
+			instance = new DeviceRegistry();
+			instance.rescan();
+			Device[] devices = instance.getDevices();
+			for (int i = 0; i < devices.length; i++){
+				System.out.println(devices[i]);
+			}
+		}
+		return instance;
+	}
+
+	private DeviceRegistry(){
+	}
+
+	/** Enumerates the connected devices and notifies listeners of the changes
+	 *  since the previous scan
+	 *
+	 * @return boolean - whether any device was plugged in or unplugged
+	 */
+	public synchronized boolean rescan(){
+		if (!NativeLoader.load()){
+			return false;
+		}
+		// listing opens every device, which fails while their drivers are being removed
+		NativeLoader.awaitDriverRemoval();
+		Device[] found;
+		try {
+			found = Service.listDevicesByType(DeviceType.FT_DEVICE_UNKNOWN);
+		} catch (FTD2xxException e){
+			// a device held open by another program can fail the whole listing,
+			// the previous scan stands until the bus can be listed again
+			if (!listingFailed){
+				listingFailed = true;
+				e.printStackTrace();
+			}
+			return false;
+		}
+		listingFailed = false;
+		Snapshot previous = snapshot;
+		HashSet<String> present = new HashSet<String>();
+		// devices this program holds open stay as they are, listing cannot open them
+		for (int i = 0; i < previous.devices.length; i++){
+			if (previous.devices[i].isOpen()){
+				present.add(previous.serials[i]);
+			}
+		}
+		ArrayList<Device> attached = new ArrayList<Device>();
+		ArrayList<String> attachedSerials = new ArrayList<String>();
+		ArrayList<String> attachedDescriptions = new ArrayList<String>();
+		ArrayList<Integer> unreadable = new ArrayList<Integer>();
+		for (int i = 0; i < found.length; i++){
+			DeviceDescriptor descriptor = descriptorOf(found[i]);
+			if (descriptor == null){
+				unreadable.add(i);
+				continue;
+			}
+			String serial = descriptor.getSerialNumber();
+			serial = serial != null && serial.length() > 0 ? serial : "#" + i;
+			if (previous.bySerial.containsKey(serial)){
+				present.add(serial);
+			} else if (!attachedSerials.contains(serial)){
+				attached.add(found[i]);
+				attachedSerials.add(serial);
+				attachedDescriptions.add(descriptor.getProductDescription());
+			}
+		}
+		// a device that cannot be opened is probably a known one held open by
+		// another program, so no known device is gone, only the extra ones are new
+		int missing = 0;
+		if (!unreadable.isEmpty()){
+			missing = previous.devices.length - present.size();
+			present.addAll(previous.bySerial.keySet());
+		}
+		for (int i = missing; i < unreadable.size(); i++){
+			String serial = "#" + unreadable.get(i);
+			if (!present.contains(serial) && !attachedSerials.contains(serial)){
+				attached.add(found[unreadable.get(i)]);
+				attachedSerials.add(serial);
+				attachedDescriptions.add(null);
+			}
+		}
+
+		// known devices keep their position, new ones are added after them
+		ArrayList<Device> devices = new ArrayList<Device>();
+		ArrayList<String> serials = new ArrayList<String>();
+		ArrayList<String> descriptions = new ArrayList<String>();
+		ArrayList<Device> detached = new ArrayList<Device>();
+		for (int i = 0; i < previous.devices.length; i++){
+			if (present.contains(previous.serials[i])){
+				devices.add(previous.devices[i]);
+				serials.add(previous.serials[i]);
+				descriptions.add(previous.descriptions[i]);
+			} else {
+				detached.add(previous.devices[i]);
+			}
+		}
+		devices.addAll(attached);
+		serials.addAll(attachedSerials);
+		descriptions.addAll(attachedDescriptions);
+		snapshot = new Snapshot(devices.toArray(new Device[devices.size()]),
+				serials.toArray(new String[serials.size()]), descriptions.toArray(new String[descriptions.size()]));
+
+		for (int i = 0; i < detached.size(); i++){
+			fire(previous.serialOf(detached.get(i)), detached.get(i), false);
+		}
+		for (int i = 0; i < attached.size(); i++){
+			fire(attachedSerials.get(i), attached.get(i), true);
+		}
+		return !attached.isEmpty() || !detached.isEmpty();
+	}
+
+	private void fire(String serialNumber, Device device, boolean attached){
+		for (DeviceListener listener : listeners){
+			try {
+				if (attached){
+					listener.deviceAttached(serialNumber, device);
+				} else {
+					listener.deviceDetached(serialNumber, device);
+				}
+			} catch (RuntimeException e){
+				// a broken listener must not stop the others or the scanning thread
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** Rescans the device list periodically on a background thread
+	 *
+	 * @param milliseconds - the time between scans, 0 stops scanning
+	 */
+	public synchronized void setRescanInterval(int milliseconds){
+		rescanNanos = Math.max(0, milliseconds) * 1000000L;
+		if (scanThread == null){
+			scanThread = new Thread(new Runnable(){
+				public void run(){
+					scanLoop();
+				}
+			}, "D2XX device registry");
+			scanThread.setDaemon(true);
+			scanThread.start();
+		} else {
+			LockSupport.unpark(scanThread);
+		}
+	}
+
+	private void scanLoop(){
+		while (true){
+			long interval = rescanNanos;
+			if (interval > 0){
+				LockSupport.parkNanos(this, interval);
+				if (rescanNanos > 0){
+					rescan();
+				}
+			} else {
+				LockSupport.park(this);
+			}
+		}
+	}
+
+	/** Registers a listener for devices being plugged in or unplugged
+	 *
+	 * @param listener
+	 */
+	public void addListener(DeviceListener listener){
+		listeners.addIfAbsent(listener);
+	}
+
+	/** Removes a listener added with addListener()
+	 *
+	 * @param listener
+	 */
+	public void removeListener(DeviceListener listener){
+		listeners.remove(listener);
+	}
+
+	/** Returns the devices found by the last scan, in the order they were first found
+	 *
+	 * @return Device[] - a copy of the device list
+	 */
+	public Device[] getDevices(){
+		return snapshot.devices.clone();
+	}
+
+	/** Returns the device at the given position in the last scan
+	 *
+	 * @param index - the position in the device list
+	 * @return Device - the device, or null if the index is out of range
+	 */
+	public Device getDevice(int index){
+		Device[] devices = snapshot.devices;
+		if (index < 0 || index >= devices.length){
+			return null;
+		}
+		return devices[index];
+	}
+
+	/** Returns the device with the given serial number
+	 *
+	 * @param serialNumber - the serial number programmed in the device's EEPROM
+	 * @return Device - the device, or null if it is not connected
+	 */
+	public Device findBySerialNumber(String serialNumber){
+		return snapshot.bySerial.get(serialNumber);
+	}
+
+	/** Returns the first device with the given product description that is not open yet
+	 *
+	 * @param description - the product description programmed in the device's EEPROM
+	 * @return Device - the device, or null if none is available
+	 */
+	public Device findByDescription(String description){
+		ArrayList<Device> candidates = snapshot.byDescription.get(description);
+		if (candidates != null){
+			for (int i = 0; i < candidates.size(); i++){
+				if (!candidates.get(i).isOpen()){
+					return candidates.get(i);
+				}
+			}
+		}
+		return null;
+	}
+
+	/** Returns the serial number of a device in the last scan
+	 *
+	 * @param device
+	 * @return String - the serial number, or null if the device is not connected
+	 */
+	public String getSerialNumber(Device device){
+		return snapshot.serialOf(device);
+	}
+
+	/** Returns the number of devices found by the last scan
+	 *
+	 * @return int - the number of devices
+	 */
+	public int size(){
+		return snapshot.devices.length;
+	}
+
+	/** Reads the serial number and description, which live in the EEPROM
+	 *
+	 * @param device
+	 * @return DeviceDescriptor - the descriptor, or null if it cannot be read,
+	 * 							  the device is then told apart by its position
+	 */
+	private static DeviceDescriptor descriptorOf(Device device){
+		try {
+			return device.getDeviceDescriptor();
+		} catch (FTD2xxException e){
+			return null;
+		}
+	}
+
+	/** One scan of the device list with its lookup tables */
+	private static final class Snapshot {
+
+		final Device[] devices;
+		final String[] serials;
+		final String[] descriptions;
+		final HashMap<String, Device> bySerial = new HashMap<String, Device>();
+		final HashMap<Device, String> serialByDevice = new HashMap<Device, String>();
+		final HashMap<String, ArrayList<Device>> byDescription = new HashMap<String, ArrayList<Device>>();
+
+		Snapshot(Device[] devices, String[] serials, String[] descriptions){
+			this.devices = devices;
+			this.serials = serials;
+			this.descriptions = descriptions;
+			for (int i = 0; i < devices.length; i++){
+				bySerial.put(serials[i], devices[i]);
+				serialByDevice.put(devices[i], serials[i]);
+				if (descriptions[i] != null){
+					ArrayList<Device> list = byDescription.get(descriptions[i]);
+					if (list == null){
+						list = new ArrayList<Device>();
+						byDescription.put(descriptions[i], list);
+					}
+					list.add(devices[i]);
+				}
+			}
+		}
+
+		String serialOf(Device device){
+			return serialByDevice.get(device);
+		}
+	}
+}
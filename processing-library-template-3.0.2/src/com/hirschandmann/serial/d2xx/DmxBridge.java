@@ -0,0 +1,458 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+
+import com.ftdichip.ftd2xx.Device;
+
+/**
+ * Receives DMX universes over the network, as Art-Net (ArtDmx) or sACN
+ * (ANSI E1.31) packets, and passes each mapped universe to a DmxOutput,
+ * whose device then sends it at its refresh rate. A universe therefore
+ * reaches the wire within one refresh period of arriving.
+ *
+ * Both protocols are received on non-blocking channels served by a single
+ * thread, which copies the channel values of a packet straight into the
+ * output and allocates nothing per packet. Packets that arrive out of
+ * order are dropped, as E1.31 asks. sACN priorities and merging of
+ * several sources are not supported, and the bridge does not answer
+ * ArtPoll, so controllers have to send to it by address.
+ *
+ * The bridge does not need Processing and can run on its own:
+ * <pre>
+ * java -cp D2XX.jar:FTD2XXj.jar com.hirschandmann.serial.d2xx.DmxBridge artnet:0=FT1ABCD sacn:2=FT2EFGH
+ * </pre>
+ * or inside a sketch:
+ * <pre>
+ * DmxBridge bridge = new DmxBridge();
+ * bridge.mapArtNet(0, new DmxOutput(d2xx));
+ * bridge.start();
+ * </pre>
+ */
+public class DmxBridge implements Runnable {
+
+	public static final int ARTNET_PORT = 6454;
+	public static final int SACN_PORT = 5568;
+	// Art-Net port addresses are 15 bits, sACN universes go from 1 to 63999
+	private static final int ARTNET_UNIVERSES = 32768;
+	private static final int SACN_UNIVERSES = 64000;
+
+	private static final byte[] ARTNET_ID = { 'A', 'r', 't', '-', 'N', 'e', 't', 0 };
+	private static final int ARTNET_OP_DMX = 0x5000;
+	private static final int ARTNET_HEADER_SIZE = 18;
+	private static final byte[] SACN_ID = { 'A', 'S', 'C', '-', 'E', '1', '.', '1', '7', 0, 0, 0 };
+	private static final int SACN_HEADER_SIZE = 126;
+	private static final int SACN_OPTION_PREVIEW = 0x80;
+	private static final int SACN_OPTION_TERMINATED = 0x40;
+
+	/** Where one universe goes, and the sequence number it was last received with */
+	private static final class Route {
+
+		final DmxOutput output;
+		// only touched by the bridge thread
+		int sequence = -1;
+
+		Route(DmxOutput output){
+			this.output = output;
+		}
+	}
+
+	// indexed by universe, replaced as a whole when the mapping changes
+	private volatile Route[] artNetRoutes = new Route[0];
+	private volatile Route[] sacnRoutes = new Route[0];
+
+	private final ByteBuffer packet = ByteBuffer.allocate(1024);
+	private Selector selector;
+	private DatagramChannel artNet;
+	private DatagramChannel sacn;
+	private NetworkInterface multicastInterface;
+	private final HashMap<Integer, MembershipKey> memberships = new HashMap<Integer, MembershipKey>();
+	private Thread bridgeThread;
+	private volatile boolean running;
+
+	private volatile long packetsReceived;
+	private volatile long packetsForwarded;
+	private volatile long packetsUnmapped;
+	private volatile long packetsInvalid;
+	private volatile long packetsOutOfOrder;
+
+	/** Sends an Art-Net universe to a DMX output
+	 *
+	 * @param portAddress - net, sub-net and universe, between 0 and 32767
+	 * @param output 	  - receives the universe, or null to stop sending it
+	 */
+	public synchronized void mapArtNet(int portAddress, DmxOutput output){
+		artNetRoutes = route(artNetRoutes, portAddress, ARTNET_UNIVERSES, output);
+	}
+
+	/** Sends an sACN universe to a DMX output. When a multicast interface is
+	 *  set, the universe's multicast group is joined
+	 *
+	 * @param universe - between 1 and 63999
+	 * @param output   - receives the universe, or null to stop sending it
+	 */
+	public synchronized void mapSacn(int universe, DmxOutput output){
+		if (universe < 1){
+			throw new IllegalArgumentException("sACN universe out of range: " + universe);
+		}
+		sacnRoutes = route(sacnRoutes, universe, SACN_UNIVERSES, output);
+		updateMembership(universe);
+	}
+
+	private static Route[] route(Route[] routes, int universe, int universes, DmxOutput output){
+		if (universe < 0 || universe >= universes){
+			throw new IllegalArgumentException("Universe out of range: " + universe);
+		}
+		Route[] copy = new Route[Math.max(routes.length, universe + 1)];
+		System.arraycopy(routes, 0, copy, 0, routes.length);
+		copy[universe] = output != null ? new Route(output) : null;
+		return copy;
+	}
+
+	/** Sets the network interface sACN multicast is received on. Without one,
+	 *  only sACN sent to this computer's address is received
+	 *
+	 * @param networkInterface - the interface, or null to leave every group
+	 */
+	public synchronized void setMulticastInterface(NetworkInterface networkInterface){
+		multicastInterface = networkInterface;
+		for (MembershipKey key : memberships.values()){
+			key.drop();
+		}
+		memberships.clear();
+		Route[] routes = sacnRoutes;
+		for (int universe = 1; universe < routes.length; universe++){
+			updateMembership(universe);
+		}
+	}
+
+	/** Joins or leaves the multicast group of an sACN universe, 239.255.hi.lo */
+	private void updateMembership(int universe){
+		Route[] routes = sacnRoutes;
+		boolean mapped = universe < routes.length && routes[universe] != null;
+		MembershipKey key = memberships.get(universe);
+		if (!mapped && key != null){
+			key.drop();
+			memberships.remove(universe);
+		} else if (mapped && key == null && sacn != null && multicastInterface != null){
+			try {
+				InetAddress group = InetAddress.getByAddress(new byte[]{ (byte) 239, (byte) 255, (byte) (universe >> 8), (byte) universe });
+				memberships.put(universe, sacn.join(group, multicastInterface));
+			} catch (IOException e){
+				System.err.println("Cannot join the multicast group of sACN universe " + universe);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** Starts receiving on the standard Art-Net and sACN ports
+	 *
+	 * @throws IOException when a port cannot be opened
+	 */
+	public void start() throws IOException {
+		start(ARTNET_PORT, SACN_PORT);
+	}
+
+	/** Starts receiving on the given ports
+	 *
+	 * @param artNetPort - the Art-Net port, 0 for any free port or -1 to not receive Art-Net
+	 * @param sacnPort 	 - the sACN port, 0 for any free port or -1 to not receive sACN
+	 * @throws IOException when a port cannot be opened
+	 */
+	public synchronized void start(int artNetPort, int sacnPort) throws IOException {
+		stop();
+		selector = Selector.open();
+		try {
+			if (artNetPort >= 0){
+				artNet = open(artNetPort);
+			}
+			if (sacnPort >= 0){
+				sacn = open(sacnPort);
+				setMulticastInterface(multicastInterface);
+			}
+		} catch (IOException e){
+			stop();
+			throw e;
+		}
+		running = true;
+		bridgeThread = new Thread(this, "D2XX DMX bridge");
+		bridgeThread.setDaemon(true);
+		bridgeThread.start();
+	}
+
+	private DatagramChannel open(int port) throws IOException {
+		DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		// other programs on this computer may be listening for the same universes
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		channel.bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ);
+		return channel;
+	}
+
+	/** Stops receiving and closes the ports. Outputs keep sending their last universe */
+	public synchronized void stop(){
+		running = false;
+		if (selector != null){
+			selector.wakeup();
+		}
+		if (bridgeThread != null){
+			try {
+				bridgeThread.join();
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			bridgeThread = null;
+		}
+		memberships.clear();
+		artNet = close(artNet);
+		sacn = close(sacn);
+		if (selector != null){
+			try {
+				selector.close();
+			} catch (IOException e){
+				e.printStackTrace();
+			}
+			selector = null;
+		}
+	}
+
+	private static DatagramChannel close(DatagramChannel channel){
+		if (channel != null){
+			try {
+				channel.close();
+			} catch (IOException e){
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
+
+	/** Returns the port Art-Net is received on, or -1 */
+	public synchronized int getArtNetPort(){
+		return localPort(artNet);
+	}
+
+	/** Returns the port sACN is received on, or -1 */
+	public synchronized int getSacnPort(){
+		return localPort(sacn);
+	}
+
+	private static int localPort(DatagramChannel channel){
+		try {
+			return channel != null ? ((InetSocketAddress) channel.getLocalAddress()).getPort() : -1;
+		} catch (IOException e){
+			return -1;
+		}
+	}
+
+	/** Bridge thread: waits for packets and drains both channels */
+	public void run(){
+		while (running){
+			try {
+				selector.select();
+				selector.selectedKeys().clear();
+				if (artNet != null){
+					drain(artNet, true);
+				}
+				if (sacn != null){
+					drain(sacn, false);
+				}
+			} catch (IOException e){
+				if (running){
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void drain(DatagramChannel channel, boolean isArtNet) throws IOException {
+		while (running && channel.receive(packet) != null){
+			packetsReceived++;
+			if (isArtNet){
+				artNetPacket(packet.array(), packet.position());
+			} else {
+				sacnPacket(packet.array(), packet.position());
+			}
+			packet.clear();
+		}
+	}
+
+	private void artNetPacket(byte[] data, int length){
+		if (length < ARTNET_HEADER_SIZE || !startsWith(data, ARTNET_ID)){
+			packetsInvalid++;
+			return;
+		}
+		if ((data[8] & 0xFF | (data[9] & 0xFF) << 8) != ARTNET_OP_DMX){
+			// polls, syncs and the other operations are not bridged
+			return;
+		}
+		int universe = data[14] & 0xFF | (data[15] & 0x7F) << 8;
+		int channels = (data[16] & 0xFF) << 8 | data[17] & 0xFF;
+		if (channels > DmxOutput.CHANNELS || ARTNET_HEADER_SIZE + channels > length){
+			packetsInvalid++;
+			return;
+		}
+		// a sequence number of 0 means the sender does not number its packets
+		int sequence = data[12] & 0xFF;
+		forward(artNetRoutes, universe, sequence == 0 ? -1 : sequence, data, ARTNET_HEADER_SIZE, channels);
+	}
+
+	private void sacnPacket(byte[] data, int length){
+		if (length < SACN_HEADER_SIZE || !startsWith(data, 4, SACN_ID)
+				|| int32(data, 18) != 4 || int32(data, 40) != 2 || data[117] != 2){
+			packetsInvalid++;
+			return;
+		}
+		int options = data[112] & 0xFF;
+		// only DMX with start code 0 is bridged, not preview or terminating packets
+		if ((options & (SACN_OPTION_PREVIEW | SACN_OPTION_TERMINATED)) != 0 || data[125] != 0){
+			return;
+		}
+		int universe = (data[113] & 0xFF) << 8 | data[114] & 0xFF;
+		int channels = ((data[123] & 0xFF) << 8 | data[124] & 0xFF) - 1;
+		if (channels < 0 || channels > DmxOutput.CHANNELS || SACN_HEADER_SIZE + channels > length){
+			packetsInvalid++;
+			return;
+		}
+		forward(sacnRoutes, universe, data[111] & 0xFF, data, SACN_HEADER_SIZE, channels);
+	}
+
+	private void forward(Route[] routes, int universe, int sequence, byte[] data, int offset, int channels){
+		Route route = universe < routes.length ? routes[universe] : null;
+		if (route == null){
+			packetsUnmapped++;
+			return;
+		}
+		if (sequence >= 0){
+			// E1.31: a packet up to 20 behind the last one arrived late and is dropped
+			int behind = (byte) (sequence - route.sequence);
+			if (route.sequence >= 0 && behind <= 0 && behind > -20){
+				packetsOutOfOrder++;
+				return;
+			}
+			route.sequence = sequence;
+		}
+		route.output.set(1, data, offset, channels);
+		packetsForwarded++;
+	}
+
+	private static boolean startsWith(byte[] data, byte[] prefix){
+		return startsWith(data, 0, prefix);
+	}
+
+	private static boolean startsWith(byte[] data, int offset, byte[] prefix){
+		for (int i = 0; i < prefix.length; i++){
+			if (data[offset + i] != prefix[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int int32(byte[] data, int offset){
+		return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 | (data[offset + 2] & 0xFF) << 8 | data[offset + 3] & 0xFF;
+	}
+
+	/** Returns the number of packets received on either port */
+	public long getPacketsReceived(){
+		return packetsReceived;
+	}
+
+	/** Returns the number of universes passed to an output */
+	public long getPacketsForwarded(){
+		return packetsForwarded;
+	}
+
+	/** Returns the number of universes dropped because no output was mapped to them */
+	public long getPacketsUnmapped(){
+		return packetsUnmapped;
+	}
+
+	/** Returns the number of packets that were not valid Art-Net or sACN */
+	public long getPacketsInvalid(){
+		return packetsInvalid;
+	}
+
+	/** Returns the number of universes dropped because they arrived out of order */
+	public long getPacketsOutOfOrder(){
+		return packetsOutOfOrder;
+	}
+
+	/** Runs a bridge without Processing. Every argument maps a universe to the
+	 *  FTDI device with the given serial number:
+	 *  artnet:&lt;port address&gt;=&lt;serial&gt; or sacn:&lt;universe&gt;=&lt;serial&gt;.
+	 *  An argument interface=&lt;name&gt; receives sACN multicast on that interface
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) throws IOException {
+		final DmxBridge bridge = new DmxBridge();
+		final HashMap<String, D2XX> devices = new HashMap<String, D2XX>();
+		for (int i = 0; i < args.length; i++){
+			String arg = args[i];
+			int colon = arg.indexOf(':');
+			int equals = arg.indexOf('=');
+			if (arg.startsWith("interface=")){
+				bridge.setMulticastInterface(NetworkInterface.getByName(arg.substring(equals + 1)));
+				continue;
+			}
+			String protocol = colon < 0 ? "" : arg.substring(0, colon);
+			int universe = -1;
+			try {
+				universe = Integer.parseInt(arg.substring(colon + 1, equals));
+			} catch (RuntimeException e){
+				// reported below
+			}
+			if (colon < 0 || equals < colon || universe < 0 || !(protocol.equals("artnet") || protocol.equals("sacn"))){
+				System.err.println("Cannot read " + arg + ", expected artnet:<port address>=<serial> or sacn:<universe>=<serial>");
+				System.exit(1);
+			}
+			// a device sends a single universe
+			String serial = arg.substring(equals + 1);
+			Device device = DeviceRegistry.getInstance().findBySerialNumber(serial);
+			if (device == null || devices.containsKey(serial)){
+				System.err.println(device == null ? "No device with serial number " + serial : serial + " is mapped twice");
+				System.exit(1);
+			}
+			D2XX d2xx = new D2XX(null, new FTDITransport(device), DmxOutput.BAUD_RATE);
+			devices.put(serial, d2xx);
+			DmxOutput output = new DmxOutput(d2xx);
+			// keep up with senders running at the maximum DMX rate
+			output.setRefreshRate(44);
+			if (protocol.equals("sacn")){
+				bridge.mapSacn(universe, output);
+			} else {
+				bridge.mapArtNet(universe, output);
+			}
+			System.out.println(arg.substring(0, equals) + " -> " + serial);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+			public void run(){
+				bridge.stop();
+				for (D2XX d2xx : devices.values()){
+					d2xx.dispose();
+				}
+			}
+		}, "D2XX DMX bridge shutdown"));
+		bridge.start();
+		System.out.println("Bridging Art-Net on port " + bridge.getArtNetPort() + " and sACN on port " + bridge.getSacnPort());
+		while (true){
+			try {
+				Thread.sleep(Long.MAX_VALUE);
+			} catch (InterruptedException e){
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ftdichip.ftd2xx.DataBits;
+import com.ftdichip.ftd2xx.Parity;
+import com.ftdichip.ftd2xx.StopBits;
+
+/**
+ * Turns a D2XX device, usually an FT232R based adapter, into a DMX512
+ * transmitter. The sketch sets channel values; the device's writer thread
+ * keeps sending the universe at the refresh rate, generating the break and
+ * mark-after-break by toggling the line's break state.
+ *
+ * A universe that has not changed since it was last sent is only resent
+ * every keep-alive interval, which frees the USB bus for the universes
+ * that are changing.
+ *
+ * <pre>
+ * DmxOutput dmx = new DmxOutput(d2xx);
+ * dmx.set(1, 255);
+ * </pre>
+ *
+ * @example DMX
+ */
+public class DmxOutput implements PeriodicOutput {
+
+	public static final int BAUD_RATE = 250000;
+	public static final int CHANNELS = 512;
+	public static final float DEFAULT_REFRESH_RATE = 40;
+	public static final int DEFAULT_KEEP_ALIVE = 800;
+	// timings from ANSI E1.11, with some margin over the minimums
+	private static final long BREAK_NANOS = 110000;
+	private static final long MARK_AFTER_BREAK_NANOS = 16000;
+	// a whole packet on the wire, start code and 512 slots of 11 bits each
+	private static final long PACKET_NANOS = BREAK_NANOS + MARK_AFTER_BREAK_NANOS + (CHANNELS + 1) * 11 * 1000000000L / BAUD_RATE;
+
+	private final D2XX d2xx;
+	// start code followed by the channel values, as set by the sketch
+	private final byte[] pending = new byte[CHANNELS + 1];
+	// what goes on the wire, only touched by the writer thread
+	private final byte[] packet = new byte[CHANNELS + 1];
+	private volatile boolean dirty = true;
+	// set once the link is configured, nothing is sent before
+	private volatile boolean configured;
+	private volatile long refreshNanos;
+	private volatile long keepAliveNanos;
+	private long lastSent;
+
+	private volatile long packetsSent;
+	private volatile long packetsSkipped;
+
+	/** Configures the device for DMX (250000 baud, 8 data bits, 2 stop bits,
+	 *  no parity) and starts sending an all zero universe
+	 *
+	 * @param d2xx - an open device
+	 * @throws IllegalStateException when the device already sends another DmxOutput or a shared input,
+	 * 								 its link settings are then left alone
+	 */
+	public DmxOutput(D2XX d2xx){
+		this.d2xx = d2xx;
+		setRefreshRate(DEFAULT_REFRESH_RATE);
+		setKeepAlive(DEFAULT_KEEP_ALIVE);
+		if (!d2xx.setPeriodicOutput(this)){
+			throw new IllegalStateException("The device is already sending periodic output");
+		}
+		d2xx.setBaudRate(BAUD_RATE);
+		d2xx.setDataCharacteristics(DataBits.DATA_BITS_8, StopBits.STOP_BITS_2, Parity.NONE);
+		configured = true;
+	}
+
+	/** Sets one channel
+	 *
+	 * @param channel - between 1 and 512
+	 * @param value   - between 0 and 255
+	 */
+	public void set(int channel, int value){
+		if (channel < 1 || channel > CHANNELS){
+			System.err.println("DMX channel out of range: " + channel);
+			return;
+		}
+		byte b = (byte) Math.max(0, Math.min(255, value));
+		if (pending[channel] != b){
+			pending[channel] = b;
+			dirty = true;
+		}
+	}
+
+	/** Sets consecutive channels
+	 *
+	 * @param firstChannel - between 1 and 512
+	 * @param values 	   - one byte per channel
+	 */
+	public void set(int firstChannel, byte[] values){
+		if (values == null){
+			System.err.println("DMX channels out of range!");
+			return;
+		}
+		set(firstChannel, values, 0, values.length);
+	}
+
+	/** Sets consecutive channels from part of an array
+	 *
+	 * @param firstChannel - between 1 and 512
+	 * @param values 	   - one byte per channel
+	 * @param offset 	   - index of the value for firstChannel
+	 * @param length 	   - the number of channels
+	 */
+	public void set(int firstChannel, byte[] values, int offset, int length){
+		if (values == null || offset < 0 || length < 0 || offset + length > values.length || firstChannel < 1 || firstChannel + length - 1 > CHANNELS){
+			System.err.println("DMX channels out of range!");
+			return;
+		}
+		System.arraycopy(values, offset, pending, firstChannel, length);
+		dirty = true;
+	}
+
+	/** Returns the value last set for a channel
+	 *
+	 * @param channel - between 1 and 512
+	 * @return int - between 0 and 255
+	 */
+	public int get(int channel){
+		if (channel < 1 || channel > CHANNELS){
+			System.err.println("DMX channel out of range: " + channel);
+			return 0;
+		}
+		return pending[channel] & 0xFF;
+	}
+
+	/** Sets every channel to 0 */
+	public void blackout(){
+		Arrays.fill(pending, 1, pending.length, (byte) 0);
+		dirty = true;
+	}
+
+	/** Sets how many times per second a changing universe is sent.
+	 *  A full universe takes about 23 ms on the wire, so rates above 44 Hz are
+	 *  lowered to that, a faster break would cut the previous packet short
+	 *
+	 * @param hertz
+	 */
+	public void setRefreshRate(float hertz){
+		if (hertz > 0){
+			refreshNanos = Math.max((long) (1000000000.0 / hertz), PACKET_NANOS);
+		}
+	}
+
+	/** Sets how often an unchanged universe is resent, so receivers do not
+	 *  fall back to their failsafe state
+	 *
+	 * @param milliseconds - 0 resends unchanged universes at the refresh rate
+	 */
+	public void setKeepAlive(int milliseconds){
+		keepAliveNanos = Math.max(0, milliseconds) * 1000000L;
+	}
+
+	/** Stops sending the universe. The device can be used for plain writes again */
+	public void stop(){
+		d2xx.removePeriodicOutput(this);
+	}
+
+	/** Returns the number of universes sent */
+	public long getPacketsSent(){
+		return packetsSent;
+	}
+
+	/** Returns the number of refreshes skipped because the universe had not changed */
+	public long getPacketsSkipped(){
+		return packetsSkipped;
+	}
+
+	public long service(Transport transport) throws IOException {
+		long refresh = refreshNanos;
+		if (!configured){
+			return refresh;
+		}
+		long now = System.nanoTime();
+		long sinceLast = now - lastSent;
+		if (packetsSent > 0 && sinceLast < refresh){
+			return refresh - sinceLast;
+		}
+		if (dirty){
+			dirty = false;
+			System.arraycopy(pending, 0, packet, 0, packet.length);
+		} else if (packetsSent > 0 && sinceLast < keepAliveNanos){
+			packetsSkipped++;
+			return refresh;
+		}
+		lastSent = now;
+		transport.setBreak(true);
+		sleep(BREAK_NANOS);
+		transport.setBreak(false);
+		sleep(MARK_AFTER_BREAK_NANOS);
+		transport.write(packet, 0, packet.length);
+		packetsSent++;
+		return Math.max(0, refresh - (System.nanoTime() - now));
+	}
+
+	private static void sleep(long nanos){
+		long deadline = System.nanoTime() + nanos;
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0){
+			LockSupport.parkNanos(remaining);
+		}
+	}
+}
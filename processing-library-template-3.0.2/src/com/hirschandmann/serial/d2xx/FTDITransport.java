@@ -0,0 +1,116 @@
+package com.hirschandmann.serial.d2xx;
+
+import com.ftdichip.ftd2xx.BitBangMode;
+import com.ftdichip.ftd2xx.DataBits;
+import com.ftdichip.ftd2xx.Device;
+import com.ftdichip.ftd2xx.FTD2xxException;
+import com.ftdichip.ftd2xx.Parity;
+import com.ftdichip.ftd2xx.StopBits;
+
+/**
+ * Transport backed by an FTDI device through the FTD2XXj bindings.
+ * The native library has to be loaded before a device can be listed or opened.
+ */
+public class FTDITransport implements Transport {
+
+	private Device dev;
+	// used to find the device again after it was unplugged
+	private final String serialNumber;
+
+	/**
+	 * @param dev - a device returned by one of the com.ftdichip.ftd2xx.Service list methods
+	 */
+	public FTDITransport(Device dev){
+		if (dev == null){
+			throw new IllegalArgumentException("device must not be null");
+		}
+		this.dev = dev;
+		this.serialNumber = DeviceRegistry.getInstance().getSerialNumber(dev);
+	}
+
+	/** Returns the wrapped FTD2XXj device
+	 *
+	 * @return Device - the device
+	 */
+	public Device getDevice(){
+		return dev;
+	}
+
+	public void open() throws FTD2xxException {
+		dev.open();
+	}
+
+	public void close() throws FTD2xxException {
+		dev.close();
+	}
+
+	public void reopen() throws FTD2xxException {
+		try {
+			dev.close();
+		} catch (FTD2xxException e){
+			// the handle is already gone when the device was unplugged
+		}
+		if (serialNumber != null){
+			DeviceRegistry registry = DeviceRegistry.getInstance();
+			registry.rescan();
+			Device found = registry.findBySerialNumber(serialNumber);
+			if (found == null){
+				throw new FTD2xxException("Device " + serialNumber + " is not connected");
+			}
+			dev = found;
+		}
+		dev.open();
+	}
+
+	public boolean isOpen(){
+		return dev.isOpen();
+	}
+
+	public void setBaudRate(int baudRate) throws FTD2xxException {
+		dev.getPort().setBaudRate(baudRate);
+	}
+
+	public void setDataCharacteristics(DataBits dataBits, StopBits stopBits, Parity parity) throws FTD2xxException {
+		dev.getPort().setDataCharacteristics(dataBits, stopBits, parity);
+	}
+
+	public void setBreak(boolean on) throws FTD2xxException {
+		dev.getPort().setBreakOn(on);
+	}
+
+	public void setBitMode(int directionMask, BitBangMode mode) throws FTD2xxException {
+		if (mode == BitBangMode.RESET){
+			dev.resetBitBangMode();
+		} else {
+			dev.setBitBangMode(directionMask, mode);
+		}
+	}
+
+	public void setProfile(DeviceProfile profile) throws FTD2xxException {
+		dev.setLatencyTimer(profile.getLatencyTimer());
+		dev.setUSBParameters(profile.getInTransferSize(), profile.getOutTransferSize());
+		dev.getPort().setFlowControl(profile.getFlowControl());
+		if (profile.getReadTimeout() != DeviceProfile.UNCHANGED){
+			dev.setReadTimeout(profile.getReadTimeout());
+		}
+		if (profile.getWriteTimeout() != DeviceProfile.UNCHANGED){
+			dev.setWriteTimeout(profile.getWriteTimeout());
+		}
+	}
+
+	public void write(byte[] buffer, int offset, int length) throws FTD2xxException {
+		dev.write(buffer, offset, length);
+	}
+
+	public int available() throws FTD2xxException {
+		return (int) Math.min(dev.getReceiveQueueStatus(), Integer.MAX_VALUE);
+	}
+
+	public int read(byte[] buffer, int offset, int length) throws FTD2xxException {
+		return dev.read(buffer, offset, length);
+	}
+
+	public String toString(){
+		return dev.toString();
+	}
+}
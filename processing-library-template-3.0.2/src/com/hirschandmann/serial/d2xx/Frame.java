@@ -0,0 +1,95 @@
+package com.hirschandmann.serial.d2xx;
+
+/**
+ * A pooled buffer holding one write on its way from the sketch to the device.
+ * Frames are owned by exactly one thread at a time: the producer while it is
+ * being filled, the queue while it waits and the writer thread while it is sent.
+ *
+ * Sketches can fill a frame in place to avoid copying their data:
+ *
+ * <pre>
+ * Frame frame = d2xx.obtainFrame(512);
+ * if (frame != null){
+ *   byte[] data = frame.getData();
+ *   // fill data[0] .. data[511]
+ *   frame.setLength(512);
+ *   d2xx.send(frame);
+ * }
+ * </pre>
+ */
+public class Frame {
+
+	byte[] data;
+	int length;
+	// System.nanoTime() at the moment the frame was queued
+	long timestamp;
+	// set when the frame is part of a FrameSync commit
+	FrameBarrier barrier;
+	// a control operation the writer thread runs instead of writing, 0 for a write
+	int command;
+	int argument;
+	// set for writes that must not be dropped, pacing sends them as they come
+	boolean lossless;
+
+	// control operations, run in order with the writes around them
+	static final int BREAK_ON = 1;
+	// argument: nanoseconds the break lasts at least
+	static final int BREAK_OFF = 2;
+	// argument: the new baud rate
+	static final int BAUD_RATE = 3;
+	// argument: the BitBangMode ordinal shifted left by 8, or'ed with the direction mask
+	static final int BIT_MODE = 4;
+
+	Frame(int initialCapacity){
+		data = new byte[initialCapacity];
+	}
+
+	/** Makes sure the frame can hold at least the given amount of bytes.
+	 *  The previous contents are not preserved.
+	 *
+	 * @param capacity - the number of bytes required
+	 * @return boolean - whether a new buffer had to be allocated
+	 */
+	boolean ensureCapacity(int capacity){
+		if (data.length < capacity){
+			data = new byte[capacity];
+			return true;
+		}
+		return false;
+	}
+
+	/** Returns the backing array of this frame. Only valid until the frame is sent
+	 *
+	 * @return byte[] - the frame's buffer, at least as long as the requested capacity
+	 */
+	public byte[] getData(){
+		return data;
+	}
+
+	/** Returns the number of bytes that will be sent
+	 *
+	 * @return int - the frame length
+	 */
+	public int getLength(){
+		return length;
+	}
+
+	/** Sets the number of bytes, from the start of getData(), that will be sent
+	 *
+	 * @param length
+	 */
+	public void setLength(int length){
+		if (length < 0 || length > data.length){
+			throw new IllegalArgumentException("frame length out of range: " + length);
+		}
+		this.length = length;
+	}
+
+	/** Returns the size of the backing array
+	 *
+	 * @return int - the frame capacity
+	 */
+	public int capacity(){
+		return data.length;
+	}
+}
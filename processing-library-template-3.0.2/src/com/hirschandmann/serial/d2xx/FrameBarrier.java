@@ -0,0 +1,94 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Holds back the writer threads of several devices until each of them has
+ * taken its frame of a commit off its queue, then releases them together.
+ * Waiting starts by spinning, as parking and unparking would add tens of
+ * microseconds of skew between the devices; writers still waiting after
+ * that park, so a slow device does not keep the others busy.
+ *
+ * Every writer records the moment it is released; once all of them have,
+ * the spread between the first and the last is the skew of the commit.
+ */
+class FrameBarrier {
+
+	// a writer that is stuck on a slow device must not hold the others forever
+	static final long TIMEOUT_NANOS = 100000000;
+	// number of busy spins before parking between checks
+	private static final int SPINS_BEFORE_PARK = 10000;
+	private static final long PARK_NANOS = 50000;
+
+	private volatile int parties;
+	private final AtomicInteger arrived = new AtomicInteger();
+	private final AtomicInteger started = new AtomicInteger();
+	private final AtomicLong firstStart = new AtomicLong();
+	private final AtomicLong lastStart = new AtomicLong();
+	private volatile boolean done = true;
+	private volatile long skew;
+
+	/** Prepares the barrier for a new commit. Only called once the previous
+	 *  commit is done, no writer may be inside await() any more
+	 *
+	 * @param parties - the number of writers taking part
+	 */
+	void reset(int parties){
+		arrived.set(0);
+		started.set(0);
+		firstStart.set(Long.MAX_VALUE);
+		lastStart.set(Long.MIN_VALUE);
+		done = parties == 0;
+		this.parties = parties;
+	}
+
+	/** Writer side: waits until every party has arrived, then records the release time */
+	void await(){
+		arrived.incrementAndGet();
+		long deadline = System.nanoTime() + TIMEOUT_NANOS;
+		int spins = 0;
+		while (arrived.get() < parties){
+			if (++spins > SPINS_BEFORE_PARK){
+				if (System.nanoTime() - deadline > 0){
+					break;
+				}
+				LockSupport.parkNanos(this, PARK_NANOS);
+			}
+		}
+		long now = System.nanoTime();
+		long first;
+		while (now < (first = firstStart.get()) && !firstStart.compareAndSet(first, now));
+		long last;
+		while (now > (last = lastStart.get()) && !lastStart.compareAndSet(last, now));
+		start();
+	}
+
+	/** Gives up the place of a party whose frame was dropped, so the others
+	 *  are not held back waiting for it
+	 */
+	void leave(){
+		arrived.incrementAndGet();
+		start();
+	}
+
+	private void start(){
+		if (started.incrementAndGet() == parties){
+			long first = firstStart.get();
+			long last = lastStart.get();
+			skew = last >= first ? last - first : 0;
+			done = true;
+		}
+	}
+
+	/** Returns whether every party of the last commit has been released */
+	boolean isDone(){
+		return done;
+	}
+
+	/** Returns the spread of the release times of the last completed commit, in nanoseconds */
+	long getSkew(){
+		return skew;
+	}
+}
@@ -0,0 +1,282 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.util.zip.CRC32;
+
+/**
+ * Cuts a byte stream encoded by FrameEncoder back into packets, checks their
+ * checksum and hands each one to a FrameListener.
+ *
+ * Decoding is incremental: bytes can be fed in pieces of any size and a
+ * packet may span many of them. Every byte is looked at once and packets are
+ * decoded into a single reused buffer, so no garbage is created per packet.
+ * Corrupt packets, and packets longer than the buffer, are dropped and counted.
+ *
+ * decode(D2XX) decodes the device's receive buffer in place on the calling
+ * thread. After attach(), the reader thread decodes bytes as soon as they
+ * arrive and calls the listener itself; the sketch must not read from the
+ * device then. A decoder is meant to be used by one thread at a time.
+ *
+ * <pre>
+ * FrameDecoder decoder = new FrameDecoder(Framing.COBS, Checksum.CRC16, 1024, new FrameListener(){
+ *   public void frameReceived(byte[] buffer, int offset, int length){
+ *     // use the packet before returning
+ *   }
+ * });
+ *
+ * void draw(){
+ *   decoder.decode(d2xx);
+ * }
+ * </pre>
+ *
+ * @example Framing
+ */
+public class FrameDecoder implements ReceiveHandler {
+
+	private final Framing framing;
+	private final Checksum checksum;
+	private final FrameListener listener;
+	private final CRC32 crc32 = new CRC32();
+	private final byte[] buffer;
+	private D2XX attached;
+
+	// state of the packet being decoded
+	private int length;
+	// set when the packet outgrew the buffer or is malformed, it is dropped at its end
+	private boolean overrun;
+	private boolean malformed;
+	// COBS: code byte of the current block, 0 at the start of a packet
+	private int code;
+	// COBS: bytes left in the current block
+	private int remaining;
+	// SLIP: the previous byte was an escape
+	private boolean escaped;
+
+	private volatile long frames;
+	private volatile long checksumErrors;
+	private volatile long framingErrors;
+	private volatile long overruns;
+
+	/**
+	 * @param framing 	   - how packets are delimited
+	 * @param checksum 	   - expected at the end of every packet
+	 * @param maxFrameSize - the longest packet expected, checksum excluded
+	 * @param listener 	   - receives every packet
+	 */
+	public FrameDecoder(Framing framing, Checksum checksum, int maxFrameSize, FrameListener listener){
+		this.framing = framing;
+		this.checksum = checksum;
+		this.listener = listener;
+		buffer = new byte[maxFrameSize + checksum.size()];
+	}
+
+	public Framing getFraming(){
+		return framing;
+	}
+
+	public Checksum getChecksum(){
+		return checksum;
+	}
+
+	/** Decodes everything waiting in the device's receive buffer
+	 *
+	 * @param d2xx - the device
+	 * @return int - the number of bytes decoded
+	 */
+	public int decode(D2XX d2xx){
+		return d2xx.decodeReceived(this);
+	}
+
+	/** Decodes bytes on the device's reader thread as they arrive, until
+	 *  detach(). Fails if the device's received data is already taken, by
+	 *  Transactions or another decoder
+	 *
+	 * @param d2xx - the device
+	 * @return boolean - whether the decoder was attached
+	 */
+	public synchronized boolean attach(D2XX d2xx){
+		detach();
+		if (!d2xx.setReceiveHandler(this)){
+			return false;
+		}
+		attached = d2xx;
+		return true;
+	}
+
+	/** A packet cut by the lost link fails its checksum or framing, nothing to do */
+	public void connectionLost(D2XX d2xx){
+	}
+
+	/** Stops decoding on the reader thread */
+	public synchronized void detach(){
+		if (attached != null){
+			attached.removeReceiveHandler(this);
+			attached = null;
+		}
+	}
+
+	/** Reader thread: decodes the bytes that just arrived */
+	public void received(D2XX d2xx){
+		d2xx.decodeReceived(this);
+	}
+
+	/** Decodes the next part of the stream
+	 *
+	 * @param source
+	 * @param offset
+	 * @param length
+	 */
+	public void decode(byte[] source, int offset, int length){
+		if (framing == Framing.COBS){
+			cobs(source, offset, offset + length);
+		} else {
+			slip(source, offset, offset + length);
+		}
+	}
+
+	private void cobs(byte[] source, int start, int end){
+		byte[] buffer = this.buffer;
+		int length = this.length;
+		int code = this.code;
+		int remaining = this.remaining;
+		for (int i = start; i < end; i++){
+			int value = source[i] & 0xFF;
+			if (value == 0){
+				if (code != 0){
+					this.length = length;
+					malformed |= remaining != 0;
+					endPacket();
+				}
+				length = 0;
+				code = 0;
+				remaining = 0;
+			} else if (remaining == 0){
+				// a block shorter than 254 bytes stands for a 0 that was removed
+				if (code != 0 && code != 0xFF){
+					if (length < buffer.length){
+						buffer[length++] = 0;
+					} else {
+						overrun = true;
+					}
+				}
+				code = value;
+				remaining = value - 1;
+			} else {
+				if (length < buffer.length){
+					buffer[length++] = (byte) value;
+				} else {
+					overrun = true;
+				}
+				remaining--;
+			}
+		}
+		this.length = length;
+		this.code = code;
+		this.remaining = remaining;
+	}
+
+	private void slip(byte[] source, int start, int end){
+		byte[] buffer = this.buffer;
+		int length = this.length;
+		boolean escaped = this.escaped;
+		for (int i = start; i < end; i++){
+			byte value = source[i];
+			if (value == FrameEncoder.SLIP_END){
+				// an END always ends the packet, one cut short by it is malformed
+				if (escaped){
+					escaped = false;
+					malformed = true;
+				}
+				if (length > 0 || overrun || malformed){
+					this.length = length;
+					endPacket();
+				}
+				length = 0;
+				continue;
+			} else if (escaped){
+				escaped = false;
+				if (value == FrameEncoder.SLIP_ESC_END){
+					value = FrameEncoder.SLIP_END;
+				} else if (value == FrameEncoder.SLIP_ESC_ESC){
+					value = FrameEncoder.SLIP_ESC;
+				} else {
+					malformed = true;
+				}
+			} else if (value == FrameEncoder.SLIP_ESC){
+				escaped = true;
+				continue;
+			}
+			if (length < buffer.length){
+				buffer[length++] = value;
+			} else {
+				overrun = true;
+			}
+		}
+		this.length = length;
+		this.escaped = escaped;
+	}
+
+	/** Delivers the packet in the buffer if it is intact */
+	private void endPacket(){
+		if (overrun){
+			overruns++;
+		} else if (malformed){
+			framingErrors++;
+		} else {
+			int size = checksum.size();
+			int payload = length - size;
+			if (payload < 0 || !checksumMatches(payload, size)){
+				checksumErrors++;
+			} else {
+				frames++;
+				try {
+					listener.frameReceived(buffer, 0, payload);
+				} catch (RuntimeException e){
+					e.printStackTrace();
+				}
+			}
+		}
+		overrun = false;
+		malformed = false;
+	}
+
+	private boolean checksumMatches(int payload, int size){
+		if (size == 0){
+			return true;
+		}
+		int expected = 0;
+		for (int i = 0; i < size; i++){
+			expected = (expected << 8) | (buffer[payload + i] & 0xFF);
+		}
+		return checksum.compute(buffer, 0, payload, crc32) == expected;
+	}
+
+	/** Drops the partially received packet, for example after the device was reopened */
+	public void reset(){
+		length = 0;
+		code = 0;
+		remaining = 0;
+		escaped = false;
+		overrun = false;
+		malformed = false;
+	}
+
+	/** Returns the number of packets delivered to the listener */
+	public long getFrames(){
+		return frames;
+	}
+
+	/** Returns the number of packets dropped because their checksum did not match */
+	public long getChecksumErrors(){
+		return checksumErrors;
+	}
+
+	/** Returns the number of packets dropped because they were not encoded correctly */
+	public long getFramingErrors(){
+		return framingErrors;
+	}
+
+	/** Returns the number of packets dropped because they were longer than the buffer */
+	public long getOverruns(){
+		return overruns;
+	}
+}
@@ -0,0 +1,175 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.util.zip.CRC32;
+
+/**
+ * Turns packets into a byte stream that FrameDecoder can cut back into the
+ * same packets, optionally protected by a checksum.
+ *
+ * write() encodes straight into a pooled frame of the device's write queue,
+ * so once the pool has warmed up sending a packet allocates nothing and
+ * copies the packet once. An encoder is meant to be used by one thread.
+ *
+ * <pre>
+ * FrameEncoder encoder = new FrameEncoder(Framing.COBS, Checksum.CRC16);
+ * encoder.write(d2xx, packet);
+ * </pre>
+ *
+ * @example Framing
+ */
+public class FrameEncoder {
+
+	static final byte SLIP_END = (byte) 0xC0;
+	static final byte SLIP_ESC = (byte) 0xDB;
+	static final byte SLIP_ESC_END = (byte) 0xDC;
+	static final byte SLIP_ESC_ESC = (byte) 0xDD;
+
+	private final Framing framing;
+	private final Checksum checksum;
+	private final CRC32 crc32 = new CRC32();
+	// the checksum of the packet being encoded
+	private final byte[] trailer = new byte[4];
+	// where the COBS code byte of the current block goes
+	private int codeIndex;
+
+	/**
+	 * @param framing  - how packets are delimited
+	 * @param checksum - appended to every packet
+	 */
+	public FrameEncoder(Framing framing, Checksum checksum){
+		this.framing = framing;
+		this.checksum = checksum;
+	}
+
+	public Framing getFraming(){
+		return framing;
+	}
+
+	public Checksum getChecksum(){
+		return checksum;
+	}
+
+	/** Returns the longest a packet can become once encoded
+	 *
+	 * @param length - the packet length
+	 * @return int - the number of bytes encode() may write at most
+	 */
+	public int maxEncodedLength(int length){
+		int total = length + checksum.size();
+		if (framing == Framing.COBS){
+			return total + total / 254 + 2;
+		}
+		return 2 * total + 2;
+	}
+
+	/** Encodes a packet into a frame of the device's write queue and sends it
+	 *
+	 * @param d2xx   - the device
+	 * @param packet - the whole array is sent as one packet
+	 * @return boolean - false if the queue was full and the overflow policy dropped the packet
+	 */
+	public boolean write(D2XX d2xx, byte[] packet){
+		return write(d2xx, packet, 0, packet != null ? packet.length : 0);
+	}
+
+	/** Encodes a packet into a frame of the device's write queue and sends it
+	 *
+	 * @param d2xx   - the device
+	 * @param packet
+	 * @param offset
+	 * @param length
+	 * @return boolean - false if the queue was full and the overflow policy dropped the packet
+	 */
+	public boolean write(D2XX d2xx, byte[] packet, int offset, int length){
+		if (packet == null || offset < 0 || length < 0 || offset + length > packet.length){
+			throw new IllegalArgumentException("packet range out of bounds");
+		}
+		Frame frame = d2xx.obtainFrame(maxEncodedLength(length));
+		if (frame == null){
+			return false;
+		}
+		int encoded = -1;
+		try {
+			encoded = encode(packet, offset, length, frame.data, 0);
+		} finally {
+			if (encoded < 0){
+				d2xx.discardFrame(frame);
+			}
+		}
+		frame.length = encoded;
+		d2xx.send(frame);
+		return true;
+	}
+
+	/** Encodes a packet, checksum and delimiter included
+	 *
+	 * @param packet
+	 * @param offset
+	 * @param length
+	 * @param target 	   - receives the encoded bytes, with room for maxEncodedLength(length)
+	 * @param targetOffset - where the encoded bytes start
+	 * @return int - the number of bytes written to target
+	 */
+	public int encode(byte[] packet, int offset, int length, byte[] target, int targetOffset){
+		int size = checksum.size();
+		if (size > 0){
+			int crc = checksum.compute(packet, offset, length, crc32);
+			for (int i = 0; i < size; i++){
+				trailer[i] = (byte) (crc >>> (8 * (size - 1 - i)));
+			}
+		}
+		int position;
+		if (framing == Framing.COBS){
+			codeIndex = targetOffset;
+			position = cobs(packet, offset, length, target, targetOffset + 1);
+			position = cobs(trailer, 0, size, target, position);
+			target[codeIndex] = (byte) (position - codeIndex);
+			target[position++] = 0;
+		} else {
+			// a leading END flushes any line noise received before the packet
+			target[targetOffset] = SLIP_END;
+			position = slip(packet, offset, length, target, targetOffset + 1);
+			position = slip(trailer, 0, size, target, position);
+			target[position++] = SLIP_END;
+		}
+		return position - targetOffset;
+	}
+
+	/** Stuffs bytes into COBS blocks. The code byte of a block, the distance
+	 *  to the next 0, is filled in once the block ends
+	 */
+	private int cobs(byte[] source, int offset, int length, byte[] target, int position){
+		int code = codeIndex;
+		for (int i = offset, end = offset + length; i < end; i++){
+			byte value = source[i];
+			if (value == 0){
+				target[code] = (byte) (position - code);
+				code = position++;
+			} else {
+				target[position++] = value;
+				if (position - code == 0xFF){
+					target[code] = (byte) 0xFF;
+					code = position++;
+				}
+			}
+		}
+		codeIndex = code;
+		return position;
+	}
+
+	private static int slip(byte[] source, int offset, int length, byte[] target, int position){
+		for (int i = offset, end = offset + length; i < end; i++){
+			byte value = source[i];
+			if (value == SLIP_END){
+				target[position++] = SLIP_ESC;
+				target[position++] = SLIP_ESC_END;
+			} else if (value == SLIP_ESC){
+				target[position++] = SLIP_ESC;
+				target[position++] = SLIP_ESC_ESC;
+			} else {
+				target[position++] = value;
+			}
+		}
+		return position;
+	}
+}
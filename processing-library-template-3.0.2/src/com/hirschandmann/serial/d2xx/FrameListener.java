@@ -0,0 +1,16 @@
+package com.hirschandmann.serial.d2xx;
+
+/**
+ * Receives the packets a FrameDecoder decodes.
+ */
+public interface FrameListener {
+
+	/** Called once per complete packet whose checksum matched. The buffer is
+	 *  reused for the next packet, so copy anything that is needed later
+	 *
+	 * @param buffer - the decoder's buffer
+	 * @param offset - where the packet starts
+	 * @param length - the packet length, checksum excluded
+	 */
+	void frameReceived(byte[] buffer, int offset, int length);
+}
@@ -0,0 +1,133 @@
+package com.hirschandmann.serial.d2xx;
+
+import com.ftdichip.ftd2xx.DataBits;
+import com.ftdichip.ftd2xx.Parity;
+import com.ftdichip.ftd2xx.StopBits;
+
+/**
+ * Decides when the writer thread may send the next frame, so that frames
+ * leave at the requested rate and never faster than the wire can carry them.
+ * The wire time of a frame follows from the baud rate and the number of bits
+ * each byte takes on the wire, start, data, parity and stop bits included.
+ *
+ * Only touched by the writer thread, apart from the settings and the
+ * counters, which any thread may read.
+ */
+class FramePacer {
+
+	private static final long RATE_WINDOW_NANOS = 1000000000;
+
+	private final long intervalNanos;
+	private volatile double nanosPerByte;
+
+	// earliest time the next frame may be sent
+	private long nextSlot;
+
+	// achieved rate, measured over windows of about a second
+	private long windowStart = System.nanoTime();
+	private int windowFrames;
+	private volatile float achievedRate;
+	private volatile long lastSent = System.nanoTime();
+	private volatile long superseded;
+
+	/**
+	 * @param frameRate - the requested number of frames per second
+	 */
+	FramePacer(float frameRate){
+		intervalNanos = (long) (1000000000.0 / frameRate);
+	}
+
+	/** Returns how many bits one byte takes on the wire
+	 *
+	 * @param dataBits
+	 * @param stopBits
+	 * @param parity
+	 * @return double - bits per byte, including the start bit
+	 */
+	static double bitsPerByte(DataBits dataBits, StopBits stopBits, Parity parity){
+		double bits = 1; // start bit
+		switch (dataBits){
+			case DATA_BITS_5: bits += 5; break;
+			case DATA_BITS_6: bits += 6; break;
+			case DATA_BITS_7: bits += 7; break;
+			default:          bits += 8; break;
+		}
+		switch (stopBits){
+			case STOP_BITS_1_5: bits += 1.5; break;
+			case STOP_BITS_2:   bits += 2;   break;
+			default:            bits += 1;   break;
+		}
+		if (parity != Parity.NONE){
+			bits += 1;
+		}
+		return bits;
+	}
+
+	/** Updates the link settings the wire time is computed from */
+	void setLink(int baudRate, DataBits dataBits, StopBits stopBits, Parity parity){
+		nanosPerByte = bitsPerByte(dataBits, stopBits, parity) * 1000000000.0 / baudRate;
+	}
+
+	/** Returns the time the wire needs to carry a frame
+	 *
+	 * @param length - number of bytes
+	 * @return long - wire time in nanoseconds
+	 */
+	long wireTime(int length){
+		return (long) (length * nanosPerByte);
+	}
+
+	/** Returns how long the writer thread has to wait before sending
+	 *
+	 * @param now - System.nanoTime()
+	 * @return long - nanoseconds, 0 or less if a frame may be sent now
+	 */
+	long delay(long now){
+		return nextSlot - now;
+	}
+
+	/** Books the wire for a frame that is about to be sent
+	 *
+	 * @param length - number of bytes
+	 * @param now 	 - System.nanoTime()
+	 */
+	void sent(int length, long now){
+		// keep the cadence when slightly late, start over when far behind
+		long base = now - nextSlot > intervalNanos ? now : nextSlot;
+		nextSlot = Math.max(base + intervalNanos, now + wireTime(length));
+		lastSent = now;
+		windowFrames++;
+		long elapsed = now - windowStart;
+		if (elapsed >= RATE_WINDOW_NANOS){
+			achievedRate = (float) (windowFrames * 1000000000.0 / elapsed);
+			windowFrames = 0;
+			windowStart = now;
+		}
+	}
+
+	/** Counts a frame replaced by a newer one before it was sent */
+	void superseded(){
+		superseded++;
+	}
+
+	float getTargetRate(){
+		return (float) (1000000000.0 / intervalNanos);
+	}
+
+	/** Returns the rate measured over the last window, falling towards 0
+	 *  once no frame has been sent for longer than a window
+	 */
+	float getAchievedRate(){
+		long idle = System.nanoTime() - lastSent;
+		float rate = achievedRate;
+		if (idle > RATE_WINDOW_NANOS){
+			// at most one frame in the time since the last one
+			rate = Math.min(rate, (float) (1000000000.0 / idle));
+		}
+		return rate;
+	}
+
+	long getSuperseded(){
+		return superseded;
+	}
+}
@@ -0,0 +1,144 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Double-buffered output across several devices, to avoid tearing when one
+ * picture is split over multiple ports. The sketch fills a back buffer for
+ * every device, then commit() hands all of them to their writer threads,
+ * which start writing to the wire together.
+ *
+ * <pre>
+ * FrameSync sync = manager.createFrameSync();
+ * for (int i = 0; i &lt; manager.size(); i++){
+ *   byte[] buffer = sync.getBackBuffer(i, 512);
+ *   // fill buffer[0] .. buffer[511]
+ * }
+ * sync.commit();
+ * </pre>
+ *
+ * At most one commit is in flight at a time: commit() waits until every device
+ * has started sending the previous one.
+ */
+public class FrameSync {
+
+	private static final long WAIT_PARK_NANOS = 50000;
+
+	private final D2XX[] outputs;
+	private final Frame[] backFrames;
+	// two barriers, so one can be filled while the other is being released.
+	// One that is not done when its turn comes again is replaced, as a late
+	// writer may still be waiting on it
+	private final FrameBarrier[] barriers = { new FrameBarrier(), new FrameBarrier() };
+	private FrameBarrier current;
+	private boolean skewCollected = true;
+	private long commits;
+	private long lastSkew;
+	private long maxSkew;
+
+	/**
+	 * @param outputs - the devices that make up one picture
+	 */
+	public FrameSync(D2XX... outputs){
+		this.outputs = outputs.clone();
+		this.backFrames = new Frame[outputs.length];
+	}
+
+	/** Returns the back buffer of a device, to be filled before the next commit().
+	 *  The same buffer is returned until commit() is called. Its contents are
+	 *  undefined until filled
+	 *
+	 * @param index - the position of the device in this group
+	 * @param size  - the number of bytes that will be sent
+	 * @return byte[] - a buffer of at least size bytes, or null if the device's queue dropped it
+	 */
+	public byte[] getBackBuffer(int index, int size){
+		Frame frame = backFrames[index];
+		if (frame == null){
+			frame = outputs[index].obtainFrame(size);
+			if (frame == null){
+				return null;
+			}
+			backFrames[index] = frame;
+		} else {
+			frame.ensureCapacity(size);
+		}
+		frame.length = size;
+		return frame.data;
+	}
+
+	/** Releases every filled back buffer to its device. The writer threads wait
+	 *  for each other and start writing to the wire at the same time
+	 *
+	 * @return boolean - false if the previous commit had not completed within the timeout
+	 */
+	public boolean commit(){
+		boolean completed = awaitPrevious();
+		int parties = 0;
+		for (int i = 0; i < backFrames.length; i++){
+			if (backFrames[i] != null){
+				parties++;
+			}
+		}
+		int slot = (int) (commits++ & 1);
+		FrameBarrier barrier = barriers[slot];
+		if (!barrier.isDone()){
+			barrier = barriers[slot] = new FrameBarrier();
+		}
+		barrier.reset(parties);
+		for (int i = 0; i < backFrames.length; i++){
+			Frame frame = backFrames[i];
+			if (frame != null){
+				frame.barrier = barrier;
+				outputs[i].send(frame);
+				backFrames[i] = null;
+			}
+		}
+		current = barrier;
+		skewCollected = parties == 0;
+		return completed;
+	}
+
+	/** Returns the spread between the first and the last device starting to
+	 *  send the most recently completed commit
+	 *
+	 * @return long - the skew in nanoseconds
+	 */
+	public long getLastSkew(){
+		collectSkew();
+		return lastSkew;
+	}
+
+	/** Returns the largest skew measured since this group was created
+	 *
+	 * @return long - the skew in nanoseconds
+	 */
+	public long getMaxSkew(){
+		collectSkew();
+		return maxSkew;
+	}
+
+	private boolean awaitPrevious(){
+		FrameBarrier barrier = current;
+		if (barrier == null){
+			return true;
+		}
+		long deadline = System.nanoTime() + FrameBarrier.TIMEOUT_NANOS;
+		while (!barrier.isDone()){
+			if (System.nanoTime() - deadline > 0){
+				return false;
+			}
+			LockSupport.parkNanos(WAIT_PARK_NANOS);
+		}
+		collectSkew();
+		return true;
+	}
+
+	private void collectSkew(){
+		if (!skewCollected && current.isDone()){
+			lastSkew = current.getSkew();
+			maxSkew = Math.max(maxSkew, lastSkew);
+			skewCollected = true;
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package com.hirschandmann.serial.d2xx;
+
+/**
+ * How FrameEncoder and FrameDecoder mark where one packet ends and the next
+ * begins on a byte stream.
+ */
+public enum Framing {
+	/** Consistent Overhead Byte Stuffing: packets end with a 0 byte and contain
+	 *  no other 0 bytes, at a cost of one byte per 254 */
+	COBS,
+	/** RFC 1055: packets are delimited by 0xC0, which is escaped inside a
+	 *  packet, together with the escape byte 0xDB, as two bytes. Empty packets
+	 *  cannot be told from line noise and are only delivered with a checksum */
+	SLIP
+}
@@ -0,0 +1,117 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for one D2XX instance. Each counter has a single owning thread
+ * (noted below) which updates it without locking, so recording stays cheap
+ * enough to leave on at high write rates. Any thread may read.
+ */
+class IOMetrics {
+
+	// writer thread
+	private volatile long bytesWritten;
+	private volatile long framesWritten;
+	private volatile long transportWrites;
+	private volatile long mergedWrites;
+	private volatile long lastWriteLatency;
+	private volatile long idleNanos;
+	private volatile long writerStart;
+	// time from write() to transport.write() returning
+	final LatencyHistogram writeLatency = new LatencyHistogram();
+	// the same for writeUrgent()
+	final LatencyHistogram urgentLatency = new LatencyHistogram();
+	// duration of the transport.write() call alone
+	final LatencyHistogram transportWriteTime = new LatencyHistogram();
+
+	// reader thread
+	private volatile long bytesRead;
+	private volatile long transportReads;
+
+	// any thread
+	private final AtomicLong errors = new AtomicLong();
+
+	void writerStarted(){
+		writerStart = System.nanoTime();
+	}
+
+	void recordTransportWrite(int bytes, int frames, long callNanos){
+		bytesWritten += bytes;
+		framesWritten += frames;
+		transportWrites++;
+		mergedWrites += frames - 1;
+		transportWriteTime.record(callNanos);
+	}
+
+	/** Records a transport.write() carrying part of a frame, the last part
+	 *  is recorded with recordTransportWrite() */
+	void recordChunk(int bytes, long callNanos){
+		bytesWritten += bytes;
+		transportWrites++;
+		transportWriteTime.record(callNanos);
+	}
+
+	void recordUrgentLatency(long nanos){
+		urgentLatency.record(nanos);
+	}
+
+	void recordLatency(long nanos){
+		lastWriteLatency = nanos;
+		writeLatency.record(nanos);
+	}
+
+	void recordIdle(long nanos){
+		idleNanos += nanos;
+	}
+
+	void recordRead(int bytes){
+		bytesRead += bytes;
+		transportReads++;
+	}
+
+	void recordError(){
+		errors.incrementAndGet();
+	}
+
+	long getBytesWritten(){
+		return bytesWritten;
+	}
+
+	long getFramesWritten(){
+		return framesWritten;
+	}
+
+	long getTransportWrites(){
+		return transportWrites;
+	}
+
+	long getMergedWrites(){
+		return mergedWrites;
+	}
+
+	long getLastWriteLatency(){
+		return lastWriteLatency;
+	}
+
+	long getBytesRead(){
+		return bytesRead;
+	}
+
+	long getTransportReads(){
+		return transportReads;
+	}
+
+	long getErrors(){
+		return errors.get();
+	}
+
+	/** Returns the fraction of time the writer thread spent parked with nothing to send */
+	double getWriterIdleRatio(){
+		long start = writerStart;
+		if (start == 0){
+			return 0;
+		}
+		long elapsed = System.nanoTime() - start;
+		return elapsed > 0 ? Math.min(1.0, (double) idleNanos / elapsed) : 0;
+	}
+}
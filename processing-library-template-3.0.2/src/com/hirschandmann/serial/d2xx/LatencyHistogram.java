@@ -0,0 +1,92 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, allocation free histogram of nanosecond durations.
+ * Values are grouped by power of two, each split in 8 linear sub-buckets,
+ * so percentiles are accurate to within 12.5%.
+ *
+ * Recording is meant for a single thread; any thread may read.
+ */
+class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+	private volatile long count;
+	private volatile long total;
+	private volatile long max;
+
+	/** Adds a duration. Only called from the owning thread
+	 *
+	 * @param nanos
+	 */
+	void record(long nanos){
+		if (nanos < 0){
+			nanos = 0;
+		}
+		int index = indexOf(nanos);
+		counts.lazySet(index, counts.get(index) + 1);
+		total += nanos;
+		if (nanos > max){
+			max = nanos;
+		}
+		count++;
+	}
+
+	/** Returns an upper bound of the value below which the given fraction of durations fall
+	 *
+	 * @param fraction - between 0 and 1, for instance 0.99
+	 * @return long - the percentile in nanoseconds, 0 if nothing was recorded
+	 */
+	long percentile(double fraction){
+		long recorded = count;
+		if (recorded == 0){
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * recorded);
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++){
+			seen += counts.get(i);
+			if (seen >= rank){
+				return Math.min(upperBoundOf(i), max);
+			}
+		}
+		return max;
+	}
+
+	long getCount(){
+		return count;
+	}
+
+	long getMax(){
+		return max;
+	}
+
+	long getMean(){
+		long recorded = count;
+		return recorded > 0 ? total / recorded : 0;
+	}
+
+	private static int indexOf(long value){
+		if (value < SUB_BUCKETS){
+			return (int) value;
+		}
+		int octave = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return ((octave - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) | sub;
+	}
+
+	private static long upperBoundOf(int index){
+		int octave = (index >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		int sub = index & (SUB_BUCKETS - 1);
+		if (index < SUB_BUCKETS){
+			return index;
+		}
+		long base = 1L << octave;
+		long step = base >>> SUB_BUCKET_BITS;
+		return base + (sub + 1) * step - 1;
+	}
+}
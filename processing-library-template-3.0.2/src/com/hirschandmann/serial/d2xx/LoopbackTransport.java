@@ -0,0 +1,290 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ftdichip.ftd2xx.BitBangMode;
+import com.ftdichip.ftd2xx.DataBits;
+import com.ftdichip.ftd2xx.Parity;
+import com.ftdichip.ftd2xx.StopBits;
+
+/**
+ * A pure Java transport that behaves like a serial cable with its TX and RX
+ * pins tied together: every written byte can be read back. It needs no native
+ * library and no USB, which makes it suitable for tests and benchmarks.
+ *
+ * Writes can be throttled to the wire speed implied by the baud rate and data
+ * characteristics, and received bytes can be delayed by a fixed latency to
+ * mimic the USB round trip of a real adapter.
+ */
+public class LoopbackTransport implements Transport {
+
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+	private static final int MARKER_COUNT = 1024;
+
+	// Receive ring, bytes between head and tail are waiting to be read
+	private final byte[] ring;
+	private final int mask;
+	private long head;
+	private long tail;
+	// Arrival markers: bytes up to markerEnd[i] become readable at markerTime[i]
+	private final long[] markerEnd = new long[MARKER_COUNT];
+	private final long[] markerTime = new long[MARKER_COUNT];
+	private long markerHead;
+	private long markerTail;
+	private long readableTail;
+
+	// Link settings
+	private volatile boolean open;
+	private volatile boolean connected = true;
+	private volatile boolean throttled = true;
+	private volatile boolean loopback = true;
+	private volatile long latencyNanos;
+	private volatile BitBangMode bitMode = BitBangMode.RESET;
+	private volatile int directionMask;
+	private volatile int baudRate = 9600;
+	private volatile double bitsPerByte = 10;
+	// time at which the simulated wire finishes sending the last write
+	private long wireFreeAt;
+
+	// Counters
+	private volatile long bytesWritten;
+	private volatile long writeCalls;
+	private volatile long overflow;
+	private volatile long breaks;
+
+	public LoopbackTransport(){
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize - size of the receive buffer, rounded up to a power of two
+	 */
+	public LoopbackTransport(int bufferSize){
+		if (bufferSize < 1){
+			throw new IllegalArgumentException("bufferSize must be at least 1");
+		}
+		int size = Integer.highestOneBit(bufferSize);
+		if (size < bufferSize){
+			size <<= 1;
+		}
+		ring = new byte[size];
+		mask = size - 1;
+	}
+
+	/** Sets whether writes take as long as the configured baud rate needs to
+	 *  put them on the wire. Defaults to true
+	 *
+	 * @param throttled
+	 */
+	public void setThrottled(boolean throttled){
+		this.throttled = throttled;
+	}
+
+	/** Sets the delay between a byte leaving the wire and it becoming readable
+	 *
+	 * @param latencyNanos - the delay in nanoseconds
+	 */
+	public void setLatency(long latencyNanos){
+		this.latencyNanos = Math.max(latencyNanos, 0);
+	}
+
+	/** Sets whether written bytes are echoed back to the receive side.
+	 *  When false the transport acts as a sink. Defaults to true
+	 *
+	 * @param loopback
+	 */
+	public void setLoopback(boolean loopback){
+		this.loopback = loopback;
+	}
+
+	/** Makes bytes readable as if the simulated device had sent them
+	 *
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 */
+	public void inject(byte[] buffer, int offset, int length){
+		receive(buffer, offset, length, System.nanoTime() + latencyNanos);
+	}
+
+	/** Returns the time the wire needs to carry the given amount of bytes at
+	 *  the current baud rate and data characteristics, or bit-bang clock
+	 *
+	 * @param length - number of bytes
+	 * @return long - wire time in nanoseconds
+	 */
+	public long wireTime(int length){
+		if (bitMode != BitBangMode.RESET){
+			// one pin state per bit-bang clock
+			return (long) (length * 1000000000.0 / ((double) baudRate * BitBang.CLOCK_MULTIPLIER));
+		}
+		return (long) (length * bitsPerByte * 1000000000.0 / baudRate);
+	}
+
+	/** Simulates unplugging the cable: while disconnected every read, write
+	 *  and attempt to open the link fails
+	 *
+	 * @param connected
+	 */
+	public void setConnected(boolean connected){
+		this.connected = connected;
+	}
+
+	public void open() throws IOException {
+		if (!connected){
+			throw new IOException("Loopback transport is disconnected");
+		}
+		open = true;
+	}
+
+	public void reopen() throws IOException {
+		close();
+		open();
+	}
+
+	public void close(){
+		open = false;
+	}
+
+	public boolean isOpen(){
+		return open;
+	}
+
+	public void setBaudRate(int baudRate) throws IOException {
+		if (baudRate <= 0){
+			throw new IOException("Invalid baud rate: " + baudRate);
+		}
+		this.baudRate = baudRate;
+	}
+
+	public void setDataCharacteristics(DataBits dataBits, StopBits stopBits, Parity parity){
+		bitsPerByte = FramePacer.bitsPerByte(dataBits, stopBits, parity);
+	}
+
+	/** A break holds the simulated wire, the next write starts after it ends */
+	public void setBreak(boolean on){
+		if (on){
+			breaks++;
+		} else {
+			wireFreeAt = Math.max(wireFreeAt, System.nanoTime());
+		}
+	}
+
+	/** Records the bit mode. Written pin states are echoed like serial bytes,
+	 *  which matches the samples a synchronous bit-bang read returns when every
+	 *  pin is an output looped back to itself
+	 */
+	public void setBitMode(int directionMask, BitBangMode mode){
+		this.directionMask = directionMask;
+		this.bitMode = mode;
+	}
+
+	/** Returns the bit mode last set, BitBangMode.RESET for serial */
+	public BitBangMode getBitMode(){
+		return bitMode;
+	}
+
+	/** Returns the pin direction mask last set */
+	public int getDirectionMask(){
+		return directionMask;
+	}
+
+	/** The loopback has no USB link to tune, profiles are accepted and ignored */
+	public void setProfile(DeviceProfile profile){
+	}
+
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		checkConnected();
+		long now = System.nanoTime();
+		long sentAt = now;
+		if (throttled){
+			sentAt = Math.max(now, wireFreeAt) + wireTime(length);
+			wireFreeAt = sentAt;
+			long remaining;
+			while ((remaining = sentAt - System.nanoTime()) > 0){
+				LockSupport.parkNanos(remaining);
+			}
+		}
+		if (loopback){
+			receive(buffer, offset, length, sentAt + latencyNanos);
+		}
+		bytesWritten += length;
+		writeCalls++;
+	}
+
+	public synchronized int available() throws IOException {
+		checkConnected();
+		long now = System.nanoTime();
+		while (markerHead < markerTail && markerTime[(int) (markerHead % MARKER_COUNT)] - now <= 0){
+			readableTail = markerEnd[(int) (markerHead % MARKER_COUNT)];
+			markerHead++;
+		}
+		return (int) (readableTail - head);
+	}
+
+	public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+		int count = Math.min(length, available());
+		int start = (int) head & mask;
+		int first = Math.min(count, ring.length - start);
+		System.arraycopy(ring, start, buffer, offset, first);
+		System.arraycopy(ring, 0, buffer, offset + first, count - first);
+		head += count;
+		return count;
+	}
+
+	private void checkConnected() throws IOException {
+		if (!connected){
+			// a pulled cable also closes the link
+			open = false;
+		}
+		if (!open){
+			throw new IOException("Loopback transport is not open");
+		}
+	}
+
+	private synchronized void receive(byte[] buffer, int offset, int length, long arrival){
+		int count = Math.min(length, ring.length - (int) (tail - head));
+		int start = (int) tail & mask;
+		int first = Math.min(count, ring.length - start);
+		System.arraycopy(buffer, offset, ring, start, first);
+		System.arraycopy(buffer, offset + first, ring, 0, count - first);
+		tail += count;
+		overflow += length - count;
+		if (markerTail - markerHead == MARKER_COUNT){
+			// out of markers, extend the newest one so no bytes arrive early
+			int last = (int) ((markerTail - 1) % MARKER_COUNT);
+			markerEnd[last] = tail;
+			markerTime[last] = arrival;
+		} else {
+			int next = (int) (markerTail % MARKER_COUNT);
+			markerEnd[next] = tail;
+			markerTime[next] = arrival;
+			markerTail++;
+		}
+	}
+
+	/** Returns the number of bytes accepted by write() */
+	public long getBytesWritten(){
+		return bytesWritten;
+	}
+
+	/** Returns the number of write() calls */
+	public long getWriteCalls(){
+		return writeCalls;
+	}
+
+	/** Returns the number of times the line was put in the break state */
+	public long getBreaks(){
+		return breaks;
+	}
+
+	/** Returns the number of received bytes lost because the receive buffer was full */
+	public long getOverflow(){
+		return overflow;
+	}
+
+	public String toString(){
+		return "LoopbackTransport " + baudRate + " baud";
+	}
+}
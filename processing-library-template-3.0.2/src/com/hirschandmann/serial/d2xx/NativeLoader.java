@@ -0,0 +1,354 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.net.URL;
+
+/**
+ * Loads the ftd2xx native libraries, once per JVM and only when a device is
+ * first needed. Every later call returns the cached result straight away.
+ *
+ * The libraries are loaded by absolute path from the library's platform
+ * folder, and whether that succeeded is the result of load(). The folder is
+ * also added to java.library.path for FTD2XXj's own System.loadLibrary()
+ * call, which older JVMs can be told to read again.
+ *
+ * On platforms where the operating system's own FTDI drivers claim the
+ * devices (macOS and ARM Linux), those drivers are checked and removed on a
+ * background thread. Listing and opening devices wait for that to finish,
+ * and the drivers are put back once the last open device has been closed.
+ *
+ * load, getLibPath and addLibraryPath functions heavily 'inspired by' OpenCV's platform
+ * specific library loading:
+ * https://github.com/atduskgreg/opencv-processing/blob/master/src/gab/opencv/OpenCV.java#L395
+ */
+final class NativeLoader {
+
+	private static final String JNI_LIBRARY = "ftd2xxj";
+	private static final String DRIVER_LIBRARY = "ftd2xx";
+	private static final String APPLE_DRIVER = "com.apple.driver.AppleUSBFTDI";
+
+	// detected the way PApplet does, without needing any Processing class
+	private static final String OS = System.getProperty("os.name", "").toLowerCase();
+	static final boolean WINDOWS = OS.contains("windows");
+	static final boolean MACOSX = OS.contains("mac");
+	static final boolean LINUX = OS.contains("linux");
+
+	private static volatile boolean loaded;
+	private static boolean attempted;
+	private static String libraryPath;
+	private static long loadNanos;
+
+	// removes conflicting operating system drivers while the sketch starts
+	private static Thread driverThread;
+	private static volatile boolean driversRemoved;
+	// set once the drivers were put back, the next device opened removes them again
+	private static boolean driversReloaded;
+	// FTDI devices open in this JVM, the drivers are put back when the last one closes
+	private static int openDevices;
+
+	private NativeLoader(){
+	}
+
+	/** Loads the native libraries the first time it is called
+	 *
+	 * @return boolean - whether the native libraries are available
+	 */
+	static boolean load(){
+		if (loaded){
+			return true;
+		}
+		synchronized (NativeLoader.class){
+			if (!attempted){
+				attempted = true;
+				long start = System.nanoTime();
+				startDriverRemoval();
+				loaded = loadLibraries();
+				loadNanos = System.nanoTime() - start;
+				if (!loaded){
+					System.err.println("Cannot load the ftd2xx native library from " + libraryPath);
+				}
+			}
+		}
+		return loaded;
+	}
+
+	static boolean isLoaded(){
+		return loaded;
+	}
+
+	/** Returns the folder the native libraries were loaded from
+	 *
+	 * @return String - the folder, or null if load() has not been called
+	 */
+	static synchronized String getLibraryPath(){
+		return libraryPath;
+	}
+
+	/** Returns the time load() took, not counting the driver removal running in the background
+	 *
+	 * @return long - nanoseconds
+	 */
+	static synchronized long getLoadNanos(){
+		return loadNanos;
+	}
+
+	/** Waits for a removal of conflicting operating system drivers still in
+	 *  flight, as listing the devices opens each of them
+	 */
+	static void awaitDriverRemoval(){
+		Thread thread;
+		synchronized (NativeLoader.class){
+			thread = driverThread;
+		}
+		join(thread);
+	}
+
+	/** Takes a reference on the removal of conflicting operating system
+	 *  drivers, which must be done before a device is opened, and waits until
+	 *  they have been removed. Drivers put back by releaseDrivers() are removed
+	 *  again. Every call must be matched by a call to releaseDrivers()
+	 */
+	static void acquireDrivers(){
+		Thread thread;
+		synchronized (NativeLoader.class){
+			openDevices++;
+			if (driversReloaded){
+				driversReloaded = false;
+				startDriverRemoval();
+			}
+			thread = driverThread;
+		}
+		join(thread);
+	}
+
+	/**
+	 * Releases a reference taken by acquireDrivers(). Once the last open
+	 * device has released its reference, the native USB serial drivers removed
+	 * for it are put back
+	 */
+	static void releaseDrivers(){
+		Thread thread;
+		synchronized (NativeLoader.class){
+			if (openDevices == 0 || --openDevices > 0){
+				return;
+			}
+			thread = driverThread;
+		}
+		// only waits for a removal still in flight, never starts one
+		join(thread);
+		synchronized (NativeLoader.class){
+			// a device may have been opened in the meantime
+			if (openDevices == 0 && driversRemoved && MACOSX){
+				driversRemoved = false;
+				run("sudo", "kextload", "-b", APPLE_DRIVER);
+				driversReloaded = true;
+			}
+		}
+	}
+
+	private static void join(Thread thread){
+		if (thread != null){
+			try {
+				thread.join();
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static void startDriverRemoval(){
+		boolean arm = System.getProperty("os.arch").contains("arm");
+		if (MACOSX || (LINUX && arm)){
+			driverThread = new Thread(new Runnable(){
+				public void run(){
+					removeDrivers();
+				}
+			}, "D2XX driver check");
+			driverThread.setDaemon(true);
+			driverThread.start();
+		}
+	}
+
+	/**
+	 * A method to remove any conflicting native USB serial drivers
+	 */
+	private static void removeDrivers(){
+		if (LINUX){
+			// reading the module list is much cheaper than running rmmod for nothing
+			String modules = readFile("/proc/modules");
+			if (modules == null || modules.contains("ftdi_sio")){
+				run("sudo", "rmmod", "ftdi_sio");
+			}
+			if (modules == null || modules.contains("usbserial")){
+				run("sudo", "rmmod", "usbserial");
+			}
+		} else if (MACOSX){
+			String loadedKexts = output("kextstat", "-l", "-b", APPLE_DRIVER);
+			if (loadedKexts == null || loadedKexts.contains(APPLE_DRIVER)){
+				run("sudo", "kextunload", "-b", APPLE_DRIVER);
+				driversRemoved = true;
+			}
+		}
+	}
+
+	private static boolean loadLibraries(){
+		String bitsJVM = System.getProperty("sun.arch.data.model", "64");
+		String libPath = getLibPath();
+		String path = libPath;
+		String[] names = { JNI_LIBRARY };
+
+		if (WINDOWS){
+			path = libPath + "windows" + bitsJVM;
+			names = new String[]{ DRIVER_LIBRARY, JNI_LIBRARY };
+		} else if (MACOSX){
+			path = libPath + "macosx" + bitsJVM;
+		} else if (LINUX){
+			boolean arm = System.getProperty("os.arch").contains("arm");
+			// RPi solution to not have a dependacy on libraries in /usr/local/lib/
+			path = arm ? libPath + "arm7" : libPath + "linux" + bitsJVM;
+			if (arm){
+				names = new String[]{ DRIVER_LIBRARY, JNI_LIBRARY };
+			}
+		}
+		if (!new File(path).isDirectory()){
+			// fall back to libraries installed on the system
+			path = libPath;
+		}
+		libraryPath = path;
+
+		try {
+			for (int i = 0; i < names.length; i++){
+				File file = findLibrary(path, names[i]);
+				if (file != null){
+					System.load(file.getAbsolutePath());
+				} else {
+					System.loadLibrary(names[i]);
+				}
+			}
+		} catch (UnsatisfiedLinkError e){
+			e.printStackTrace();
+			return false;
+		}
+		addLibraryPath(path);
+		return true;
+	}
+
+	/** Looks for a library file in a folder, including the .jnilib name older macOS builds use
+	 *
+	 * @param path - the folder
+	 * @param name - the library name without prefix or extension
+	 * @return File - the library file, or null if there is none
+	 */
+	private static File findLibrary(String path, String name){
+		File file = new File(path, System.mapLibraryName(name));
+		if (file.isFile()){
+			return file;
+		}
+		file = new File(path, "lib" + name + ".jnilib");
+		return file.isFile() ? file : null;
+	}
+
+	/** Returns the path to the current operating directory of this library
+	 *
+	 * @return String - path to the current operating directory of this library
+	 */
+	private static String getLibPath() {
+		URL url = D2XX.class.getResource("D2XX.class");
+		if (url!= null){
+			String path = url.toString().replaceAll("%20", " ");
+			int n0 = path.indexOf('/');
+			int n1 = -1;
+			n1 = path.indexOf("D2XX.jar");
+			if (WINDOWS){
+				// In Windows, path string starts with "jar file/C:/.."
+				// so the substring up to  the first / is removed
+				n0++;
+			}
+			if ((-1 < n0) && (-1 < n1)){
+				return path.substring(n0, n1);
+			} else {
+				return "";
+			}
+		}
+		return "";
+	}
+
+	/** Adds the given folder to java.library.path for FTD2XXj, which loads
+	 *  the libraries by name
+	 *
+	 * @param path - the folder to be added to java.library.path
+	 */
+	private static void addLibraryPath(String path){
+		String originalPath = System.getProperty("java.library.path", "");
+		String[] entries = originalPath.split(File.pathSeparator);
+		File dir = new File(path).getAbsoluteFile();
+		for (int i = 0; i < entries.length; i++){
+			if (new File(entries[i]).getAbsoluteFile().equals(dir)){
+				return;
+			}
+		}
+		if (findLibrary(path, JNI_LIBRARY) == null){
+			// installed on the system, already on the default search path
+			return;
+		}
+		System.setProperty("java.library.path", originalPath + File.pathSeparator + path);
+		// the path is only read once, JDK 8 can be told to read it again
+		try {
+			Field sysPathsField = ClassLoader.class.getDeclaredField("sys_paths");
+			sysPathsField.setAccessible(true);
+			sysPathsField.set(null, null);
+		} catch (Exception e){
+			// Processing puts the folder on the path itself, other programs have to
+			System.err.println("Cannot add " + path + " to java.library.path on this JVM, "
+					+ "start it with -Djava.library.path=" + path + " if FTD2XXj cannot find it");
+		}
+	}
+
+	/** Runs a command and waits for it to finish */
+	private static void run(String... command){
+		try {
+			Runtime.getRuntime().exec(command).waitFor();
+		} catch (IOException e){
+			e.printStackTrace();
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Runs a command and returns what it printed, or null if it could not be run */
+	private static String output(String... command){
+		try {
+			Process proc = Runtime.getRuntime().exec(command);
+			return read(new BufferedReader(new InputStreamReader(proc.getInputStream())));
+		} catch (IOException e){
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static String readFile(String name){
+		try {
+			return read(new BufferedReader(new FileReader(name)));
+		} catch (IOException e){
+			return null;
+		}
+	}
+
+	private static String read(BufferedReader reader) throws IOException {
+		StringBuilder text = new StringBuilder();
+		try {
+			String line;
+			while ((line = reader.readLine()) != null){
+				text.append(line).append('\n');
+			}
+		} finally {
+			reader.close();
+		}
+		return text.toString();
+	}
+}
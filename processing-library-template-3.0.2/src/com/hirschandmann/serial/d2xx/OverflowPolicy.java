@@ -0,0 +1,13 @@
+package com.hirschandmann.serial.d2xx;
+
+/**
+ * Decides what happens to a write when the outgoing queue is full
+ */
+public enum OverflowPolicy {
+	/** discard the oldest queued frame to make room for the new one */
+	DROP_OLDEST,
+	/** discard the frame that is being written */
+	DROP_NEWEST,
+	/** wait until the writer thread has sent a frame */
+	BLOCK
+}
@@ -0,0 +1,17 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.io.IOException;
+
+/**
+ * Output that the writer thread generates on its own schedule, in between
+ * queued writes, such as a continuously refreshed DMX universe.
+ */
+interface PeriodicOutput {
+
+	/** Called on the writer thread whenever it is due
+	 *
+	 * @param transport - the link to write to
+	 * @return long - nanoseconds until the next call
+	 */
+	long service(Transport transport) throws IOException;
+}
@@ -0,0 +1,242 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import processing.core.PImage;
+
+/**
+ * Turns ARGB pixels, from a PImage, PGraphics or int[], into LED bytes in the
+ * order a strip expects, applying gamma and brightness through a precomputed
+ * lookup table. An optional mapping table picks the source pixel of every LED,
+ * so any physical layout can be sampled from the canvas.
+ *
+ * Encoding writes straight into a pooled D2XX frame and does not allocate.
+ * Large canvases are split across cores with the common fork-join pool.
+ *
+ * <pre>
+ * PixelEncoder encoder = new PixelEncoder(ColorOrder.GRB, mapping);
+ * encoder.setGamma(2.2);
+ * ...
+ * encoder.write(d2xx, g);
+ * </pre>
+ */
+public class PixelEncoder {
+
+	// below this number of LEDs a single thread is faster than forking
+	public static final int PARALLEL_THRESHOLD = 16384;
+
+	private final ColorOrder order;
+	private final int[] mapping;
+	private final byte[] lut = new byte[256];
+	private float gamma = 1;
+	private float brightness = 1;
+
+	// reusable fork-join tasks, one per core
+	private final EncodeTask[] tasks;
+
+	/** Encodes every pixel in order
+	 *
+	 * @param order - the channel order of the strip
+	 */
+	public PixelEncoder(ColorOrder order){
+		this(order, null);
+	}
+
+	/**
+	 * @param order   - the channel order of the strip
+	 * @param mapping - for every LED, the index of the pixel to sample, or -1 to keep it dark.
+	 * 					Null encodes every pixel in order
+	 */
+	public PixelEncoder(ColorOrder order, int[] mapping){
+		if (order == null){
+			throw new IllegalArgumentException("order must not be null");
+		}
+		this.order = order;
+		this.mapping = mapping != null ? mapping.clone() : null;
+		int cores = Math.max(1, Runtime.getRuntime().availableProcessors());
+		tasks = new EncodeTask[cores];
+		for (int i = 0; i < cores; i++){
+			tasks[i] = new EncodeTask();
+		}
+		buildLut();
+	}
+
+	/** Sets the gamma correction applied to every channel, 1 for none
+	 *
+	 * @param gamma - usually between 1.8 and 2.8 for LEDs
+	 */
+	public void setGamma(float gamma){
+		if (gamma > 0){
+			this.gamma = gamma;
+			buildLut();
+		}
+	}
+
+	/** Scales every channel after gamma correction
+	 *
+	 * @param brightness - between 0 and 1
+	 */
+	public void setBrightness(float brightness){
+		this.brightness = Math.max(0, Math.min(1, brightness));
+		buildLut();
+	}
+
+	/** Returns the number of bytes needed to encode the given amount of pixels
+	 *
+	 * @param pixelCount - used when there is no mapping table
+	 * @return int - the encoded size
+	 */
+	public int getEncodedLength(int pixelCount){
+		int leds = mapping != null ? mapping.length : pixelCount;
+		return leds * order.bytesPerPixel;
+	}
+
+	/** Encodes an image and queues the result on a device, without copying it
+	 *
+	 * @param d2xx  - the device to send to
+	 * @param image - a PImage or PGraphics
+	 * @return boolean - false if the device's queue dropped the frame
+	 */
+	public boolean write(D2XX d2xx, PImage image){
+		image.loadPixels();
+		return write(d2xx, image.pixels);
+	}
+
+	/** Encodes ARGB pixels and queues the result on a device, without copying it
+	 *
+	 * @param d2xx   - the device to send to
+	 * @param pixels - ARGB colours, such as PApplet.pixels
+	 * @return boolean - false if the device's queue dropped the frame
+	 */
+	public boolean write(D2XX d2xx, int[] pixels){
+		int length = getEncodedLength(pixels.length);
+		Frame frame = d2xx.obtainFrame(length);
+		if (frame == null){
+			return false;
+		}
+		boolean encoded = false;
+		try {
+			encode(pixels, frame.data, 0);
+			encoded = true;
+		} finally {
+			if (!encoded){
+				d2xx.discardFrame(frame);
+			}
+		}
+		frame.setLength(length);
+		d2xx.send(frame);
+		return true;
+	}
+
+	/** Encodes an image into a buffer
+	 *
+	 * @param image  - a PImage or PGraphics
+	 * @param target - a buffer with room for getEncodedLength() bytes after offset
+	 * @param offset - where to start writing, for instance after a protocol header
+	 * @return int - the number of bytes written
+	 */
+	public int encode(PImage image, byte[] target, int offset){
+		image.loadPixels();
+		return encode(image.pixels, target, offset);
+	}
+
+	/** Encodes ARGB pixels into a buffer
+	 *
+	 * @param pixels - ARGB colours
+	 * @param target - a buffer with room for getEncodedLength() bytes after offset
+	 * @param offset - where to start writing, for instance after a protocol header
+	 * @return int - the number of bytes written
+	 */
+	public int encode(int[] pixels, byte[] target, int offset){
+		int leds = mapping != null ? mapping.length : pixels.length;
+		if (target.length - offset < leds * order.bytesPerPixel){
+			throw new IllegalArgumentException("target too small for " + leds + " pixels");
+		}
+		if (leds < PARALLEL_THRESHOLD || tasks.length == 1){
+			encodeRange(pixels, target, offset, 0, leds);
+		} else {
+			int chunk = (leds + tasks.length - 1) / tasks.length;
+			for (int i = 0; i < tasks.length; i++){
+				tasks[i].reinitialize();
+				tasks[i].set(pixels, target, offset, i * chunk, Math.min(leds, (i + 1) * chunk));
+			}
+			ForkJoinTask.invokeAll(tasks);
+			for (int i = 0; i < tasks.length; i++){
+				tasks[i].clear();
+			}
+		}
+		return leds * order.bytesPerPixel;
+	}
+
+	private void encodeRange(int[] pixels, byte[] target, int offset, int from, int to){
+		final byte[] table = lut;
+		final int stride = order.bytesPerPixel;
+		final int r = order.red;
+		final int g = order.green;
+		final int b = order.blue;
+		final int w = order.white;
+		final int[] map = mapping;
+		int out = offset + from * stride;
+		for (int i = from; i < to; i++, out += stride){
+			int argb;
+			if (map == null){
+				argb = pixels[i];
+			} else {
+				int source = map[i];
+				argb = source >= 0 && source < pixels.length ? pixels[source] : 0;
+			}
+			int red = (argb >> 16) & 0xFF;
+			int green = (argb >> 8) & 0xFF;
+			int blue = argb & 0xFF;
+			if (w >= 0){
+				int white = Math.min(red, Math.min(green, blue));
+				red -= white;
+				green -= white;
+				blue -= white;
+				target[out + w] = table[white];
+			}
+			target[out + r] = table[red];
+			target[out + g] = table[green];
+			target[out + b] = table[blue];
+		}
+	}
+
+	private void buildLut(){
+		for (int i = 0; i < 256; i++){
+			double value = Math.pow(i / 255.0, gamma) * brightness * 255.0;
+			lut[i] = (byte) Math.round(value);
+		}
+	}
+
+	private class EncodeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private int[] pixels;
+		private byte[] target;
+		private int offset;
+		private int from;
+		private int to;
+
+		void set(int[] pixels, byte[] target, int offset, int from, int to){
+			this.pixels = pixels;
+			this.target = target;
+			this.offset = offset;
+			this.from = from;
+			this.to = to;
+		}
+
+		// drop references so the task does not keep a frame alive
+		void clear(){
+			pixels = null;
+			target = null;
+		}
+
+		protected void compute(){
+			if (from < to){
+				encodeRange(pixels, target, offset, from, to);
+			}
+		}
+	}
+}
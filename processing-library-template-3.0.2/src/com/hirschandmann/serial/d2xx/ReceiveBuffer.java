@@ -0,0 +1,158 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A preallocated, lock-free byte ring between the reader thread (the single
+ * producer) and the sketch thread (the single consumer). Bytes that arrive
+ * while the ring is full are dropped and counted.
+ */
+class ReceiveBuffer {
+
+	private final byte[] ring;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong overflow = new AtomicLong();
+
+	/**
+	 * @param capacity - the number of bytes the ring can hold, rounded up to a power of two
+	 */
+	ReceiveBuffer(int capacity){
+		if (capacity < 1){
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity){
+			size <<= 1;
+		}
+		ring = new byte[size];
+		mask = size - 1;
+	}
+
+	/** Producer side: appends bytes to the ring
+	 *
+	 * @param source
+	 * @param offset
+	 * @param length
+	 * @return int - the number of bytes stored, the rest was dropped
+	 */
+	int write(byte[] source, int offset, int length){
+		long t = tail.get();
+		int free = ring.length - (int) (t - head.get());
+		int count = Math.min(free, length);
+		int start = (int) t & mask;
+		int first = Math.min(count, ring.length - start);
+		System.arraycopy(source, offset, ring, start, first);
+		System.arraycopy(source, offset + first, ring, 0, count - first);
+		tail.lazySet(t + count);
+		if (count < length){
+			overflow.addAndGet(length - count);
+		}
+		return count;
+	}
+
+	/** Consumer side: returns the number of bytes ready to be read */
+	int available(){
+		return (int) (tail.get() - head.get());
+	}
+
+	/** Consumer side: takes a single byte
+	 *
+	 * @return int - the byte as 0..255, or -1 if the ring is empty
+	 */
+	int read(){
+		long h = head.get();
+		if (h >= tail.get()){
+			return -1;
+		}
+		int value = ring[(int) h & mask] & 0xFF;
+		head.lazySet(h + 1);
+		return value;
+	}
+
+	/** Consumer side: takes up to length bytes
+	 *
+	 * @param target
+	 * @param offset
+	 * @param length
+	 * @return int - the number of bytes copied into target
+	 */
+	int read(byte[] target, int offset, int length){
+		long h = head.get();
+		int count = Math.min(length, (int) (tail.get() - h));
+		if (count <= 0){
+			return 0;
+		}
+		int start = (int) h & mask;
+		int first = Math.min(count, ring.length - start);
+		System.arraycopy(ring, start, target, offset, first);
+		System.arraycopy(ring, 0, target, offset + first, count - first);
+		head.lazySet(h + count);
+		return count;
+	}
+
+	/** Consumer side: takes as many bytes as fit in the remaining space of a buffer
+	 *
+	 * @param target - a heap or direct buffer, its position is advanced
+	 * @return int - the number of bytes copied into target
+	 */
+	int read(ByteBuffer target){
+		long h = head.get();
+		int count = Math.min(target.remaining(), (int) (tail.get() - h));
+		if (count <= 0){
+			return 0;
+		}
+		int start = (int) h & mask;
+		int first = Math.min(count, ring.length - start);
+		target.put(ring, start, first);
+		target.put(ring, 0, count - first);
+		head.lazySet(h + count);
+		return count;
+	}
+
+	/** Consumer side: hands all unread bytes to a decoder straight from the ring
+	 *
+	 * @param decoder
+	 * @return int - the number of bytes decoded
+	 */
+	int decode(FrameDecoder decoder){
+		long h = head.get();
+		int count = (int) (tail.get() - h);
+		if (count <= 0){
+			return 0;
+		}
+		int start = (int) h & mask;
+		int first = Math.min(count, ring.length - start);
+		decoder.decode(ring, start, first);
+		decoder.decode(ring, 0, count - first);
+		head.lazySet(h + count);
+		return count;
+	}
+
+	/** Consumer side: finds the first occurrence of a byte among the unread data
+	 *
+	 * @param value
+	 * @return int - the number of bytes up to and including the match, or -1 if not found
+	 */
+	int indexOf(byte value){
+		long h = head.get();
+		long t = tail.get();
+		for (long i = h; i < t; i++){
+			if (ring[(int) i & mask] == value){
+				return (int) (i - h) + 1;
+			}
+		}
+		return -1;
+	}
+
+	/** Consumer side: discards all unread bytes */
+	void clear(){
+		head.lazySet(tail.get());
+	}
+
+	long getOverflow(){
+		return overflow.get();
+	}
+}
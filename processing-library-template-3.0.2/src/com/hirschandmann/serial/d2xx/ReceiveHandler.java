@@ -0,0 +1,20 @@
+package com.hirschandmann.serial.d2xx;
+
+/**
+ * Consumes received data on the reader thread as soon as it arrives, such
+ * as the replies matched by Transactions.
+ */
+interface ReceiveHandler {
+
+	/** Called on the reader thread after new bytes were added to the receive buffer
+	 *
+	 * @param d2xx - the device that received them
+	 */
+	void received(D2XX d2xx);
+
+	/** Called once when the link is lost, on whichever thread noticed it
+	 *
+	 * @param d2xx - the device whose link was lost
+	 */
+	void connectionLost(D2XX d2xx);
+}
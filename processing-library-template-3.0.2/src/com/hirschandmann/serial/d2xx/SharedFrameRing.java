@@ -0,0 +1,310 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A ring of frames in a memory-mapped file, through which other processes
+ * (another JVM, a native renderer) hand frames to a D2XX device without
+ * sockets, pipes or serialization. The producer writes each frame straight
+ * into the shared memory; once a device reads from the ring with
+ * D2XX.setSharedInput(), its writer thread picks the frames up and sends them.
+ *
+ * One producer writes at a time and never waits for the consumer: when the
+ * consumer falls behind, the oldest frames are overwritten and skipped.
+ * Neither side takes a lock; per-slot sequence numbers tell the consumer
+ * whether a slot holds a complete frame, one still being written, or one
+ * overwritten while it was copied out.
+ *
+ * File layout, all numbers little-endian:
+ * <pre>
+ * header   0  int  magic 0x52583244, "D2XR" in the file
+ *          4  int  version, 1
+ *          8  int  slot count, a power of two
+ *          12 int  slot size, the largest frame in bytes
+ *          16 long write sequence, the number of frames published
+ *          24 .. 63 reserved, 0
+ * slot i at 64 + i * (16 + slot size rounded up to 8):
+ *          0  long sequence, 2n+1 while frame n is written, 2n+2 once complete
+ *          8  int  frame length
+ *          12 int  reserved, 0
+ *          16 byte[slot size] frame data
+ * </pre>
+ * Frame n goes to slot n % slot count. To publish it, a producer stores
+ * 2n+1 in the slot's sequence, then the length and data, then 2n+2 in the
+ * sequence and finally n+1 in the write sequence. The consumer reads them
+ * in the opposite order. Plain accesses to a mapping are not ordered by
+ * the Java memory model, so each step is separated by a write of a static
+ * volatile on the producer side and a read of it on the consumer side,
+ * which the JVM implements with the matching store and load fences.
+ *
+ * <pre>
+ * // producer, in any process
+ * SharedFrameRing ring = SharedFrameRing.create("/tmp/frames.d2xr", 8, 65536);
+ * ByteBuffer slot = ring.claim();
+ * // fill slot
+ * ring.commit(slot.position());
+ *
+ * // consumer, in the sketch owning the device
+ * d2xx.setSharedInput(SharedFrameRing.open("/tmp/frames.d2xr"));
+ * </pre>
+ *
+ * @example SharedInput
+ */
+public class SharedFrameRing implements PeriodicOutput {
+
+	static final int MAGIC = 0x52583244;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 64;
+	static final int SLOT_HEADER_SIZE = 16;
+	private static final int WRITE_SEQUENCE = 16;
+	public static final long DEFAULT_POLL_INTERVAL = 1000;
+
+	// only written and read for the fences that come with it
+	private static volatile int fence;
+
+	private final MappedByteBuffer map;
+	private final int slots;
+	private final int slotSize;
+	private final int stride;
+	// the data area of every slot, so neither side allocates per frame
+	private final ByteBuffer[] slotData;
+	private final ByteBuffer[] readData;
+
+	// producer state
+	private long published;
+	private boolean claimed;
+
+	// consumer state, only touched by the device's writer thread
+	private long next = -1;
+	private byte[] frame;
+	private volatile long pollNanos = DEFAULT_POLL_INTERVAL * 1000;
+	private volatile long framesConsumed;
+	private volatile long framesSkipped;
+
+	private SharedFrameRing(RandomAccessFile file, int slots, int slotSize, boolean initialise) throws IOException {
+		this.slots = slots;
+		this.slotSize = slotSize;
+		stride = SLOT_HEADER_SIZE + ((slotSize + 7) & ~7);
+		long size = HEADER_SIZE + (long) slots * stride;
+		try {
+			if (file.length() < size){
+				// never shrunk, a consumer may have the end of the file mapped
+				file.setLength(size);
+			}
+			map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			// the mapping stays valid once the file is closed
+			file.close();
+		}
+		map.order(ByteOrder.LITTLE_ENDIAN);
+		if (initialise){
+			map.putInt(0, MAGIC);
+			map.putInt(4, VERSION);
+			map.putInt(8, slots);
+			map.putInt(12, slotSize);
+			map.putLong(WRITE_SEQUENCE, 0);
+			map.force();
+		}
+		published = map.getLong(WRITE_SEQUENCE);
+		slotData = new ByteBuffer[slots];
+		readData = new ByteBuffer[slots];
+		for (int i = 0; i < slots; i++){
+			map.limit(HEADER_SIZE + i * stride + SLOT_HEADER_SIZE + slotSize);
+			map.position(HEADER_SIZE + i * stride + SLOT_HEADER_SIZE);
+			slotData[i] = map.slice().order(ByteOrder.LITTLE_ENDIAN);
+			readData[i] = map.slice();
+		}
+		map.clear();
+	}
+
+	/** Creates a ring, or reuses the file of a ring with the same geometry so
+	 *  a restarted producer carries on where it stopped
+	 *
+	 * @param path 	   - the ring file, on a RAM backed file system such as /dev/shm ideally
+	 * @param slots    - the number of frames the ring holds, rounded up to a power of two
+	 * @param slotSize - the largest frame in bytes
+	 * @return SharedFrameRing - the ring, ready to produce into
+	 * @throws IOException when the file cannot be created or mapped
+	 */
+	public static SharedFrameRing create(String path, int slots, int slotSize) throws IOException {
+		if (slots < 1 || slotSize < 1){
+			throw new IllegalArgumentException("slots and slotSize must be at least 1");
+		}
+		int size = Integer.highestOneBit(slots);
+		if (size < slots){
+			size <<= 1;
+		}
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		boolean reuse = false;
+		if (file.length() >= HEADER_SIZE){
+			int[] header = readHeader(file);
+			reuse = header[0] == MAGIC && header[1] == VERSION && header[2] == size && header[3] == slotSize;
+		}
+		return new SharedFrameRing(file, size, slotSize, !reuse);
+	}
+
+	/** Opens a ring created by another process
+	 *
+	 * @param path - the ring file
+	 * @return SharedFrameRing - the ring
+	 * @throws IOException when the file cannot be mapped or is not a ring
+	 */
+	public static SharedFrameRing open(String path) throws IOException {
+		if (!new File(path).isFile()){
+			throw new IOException(path + " does not exist");
+		}
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		int[] header = file.length() >= HEADER_SIZE ? readHeader(file) : new int[4];
+		if (header[0] != MAGIC || header[1] != VERSION || Integer.bitCount(header[2]) != 1 || header[3] < 1){
+			file.close();
+			throw new IOException(path + " is not a D2XX frame ring");
+		}
+		return new SharedFrameRing(file, header[2], header[3], false);
+	}
+
+	// a volatile write, nothing written before it moves past it
+	private static void storeFence(){
+		fence = 0;
+	}
+
+	// a volatile read, nothing read after it moves before it
+	private static int loadFence(){
+		return fence;
+	}
+
+	private static int[] readHeader(RandomAccessFile file) throws IOException {
+		byte[] bytes = new byte[16];
+		file.seek(0);
+		file.readFully(bytes);
+		ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		return new int[]{ header.getInt(0), header.getInt(4), header.getInt(8), header.getInt(12) };
+	}
+
+	public int getSlots(){
+		return slots;
+	}
+
+	public int getSlotSize(){
+		return slotSize;
+	}
+
+	/** Producer side: starts writing the next frame in place
+	 *
+	 * @return ByteBuffer - the slot, from position 0 to its limit of getSlotSize()
+	 */
+	public ByteBuffer claim(){
+		int slot = (int) published & (slots - 1);
+		map.putLong(HEADER_SIZE + slot * stride, 2 * published + 1);
+		// the sequence is marked odd before any of the data changes
+		storeFence();
+		claimed = true;
+		ByteBuffer data = slotData[slot];
+		data.clear();
+		return data;
+	}
+
+	/** Producer side: publishes the frame written into the claimed slot
+	 *
+	 * @param length - the number of bytes of the frame
+	 */
+	public void commit(int length){
+		if (!claimed){
+			throw new IllegalStateException("commit() without claim()");
+		}
+		if (length < 0 || length > slotSize){
+			throw new IllegalArgumentException("frame length out of range: " + length);
+		}
+		int offset = HEADER_SIZE + ((int) published & (slots - 1)) * stride;
+		map.putInt(offset + 8, length);
+		storeFence();
+		map.putLong(offset, 2 * published + 2);
+		storeFence();
+		map.putLong(WRITE_SEQUENCE, ++published);
+		claimed = false;
+	}
+
+	/** Producer side: copies a frame into the ring and publishes it
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length - at most getSlotSize()
+	 */
+	public void publish(byte[] data, int offset, int length){
+		if (length > slotSize){
+			throw new IllegalArgumentException("frame length out of range: " + length);
+		}
+		claim().put(data, offset, length);
+		commit(length);
+	}
+
+	/** Sets how often the device looks for new frames, there is no way for
+	 *  another process to wake its writer thread up
+	 *
+	 * @param micros - defaults to 1000
+	 */
+	public void setPollInterval(long micros){
+		pollNanos = Math.max(1, micros) * 1000;
+	}
+
+	/** Returns the number of frames the device took from the ring */
+	public long getFramesConsumed(){
+		return framesConsumed;
+	}
+
+	/** Returns the number of frames overwritten before the device could send them */
+	public long getFramesSkipped(){
+		return framesSkipped;
+	}
+
+	/** Writer thread: sends every frame published since the last call */
+	public long service(Transport transport) throws IOException {
+		long written = map.getLong(WRITE_SEQUENCE);
+		loadFence();
+		if (next < 0 || written < next){
+			// just attached, or the producer started over
+			next = written;
+		}
+		if (written - next > slots){
+			framesSkipped += written - slots - next;
+			next = written - slots;
+		}
+		while (next < written){
+			int offset = HEADER_SIZE + ((int) next & (slots - 1)) * stride;
+			long sequence = map.getLong(offset);
+			if (sequence == 2 * next + 1){
+				// still being written, it is complete once the write sequence says so
+				break;
+			}
+			if (sequence == 2 * next + 2){
+				loadFence();
+				int length = map.getInt(offset + 8);
+				if (length >= 0 && length <= slotSize){
+					if (frame == null){
+						frame = new byte[slotSize];
+					}
+					ByteBuffer data = readData[(int) next & (slots - 1)];
+					data.clear();
+					data.get(frame, 0, length);
+					// the copy is complete before the sequence is checked again
+					loadFence();
+					if (map.getLong(offset) == sequence){
+						transport.write(frame, 0, length);
+						framesConsumed++;
+						next++;
+						continue;
+					}
+				}
+			}
+			// overwritten by a newer frame while it was read
+			framesSkipped++;
+			next++;
+		}
+		return pollNanos;
+	}
+}
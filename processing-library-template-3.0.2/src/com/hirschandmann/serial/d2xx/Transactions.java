@@ -0,0 +1,263 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A request/reply layer for devices speaking a command protocol. Every
+ * request returns a CompletableFuture that completes with the reply, or
+ * fails once its timeout expires. Requests do not wait for earlier replies,
+ * so many can be in flight and throughput is bound by the link rather than
+ * by the round trip.
+ *
+ * Replies are cut from the received data at a delimiter byte and matched to
+ * requests by a CorrelationExtractor. Without one, replies are matched to
+ * requests in the order the requests were sent.
+ *
+ * Replies are taken from the device on its reader thread, so the sketch
+ * must not read from the device itself while transactions are in use.
+ * When replies are matched in order, a reply arriving after its request
+ * timed out is taken for the reply to the next request, so protocols that
+ * may answer late should be used with a CorrelationExtractor.
+ * Futures complete on the reader thread, or on the timeout thread.
+ * Requests may be sent from any thread, including from those callbacks.
+ *
+ * When the link is lost, every waiting request fails with an IOException.
+ * Requests sent while the device reconnects compete for the few writes it
+ * keeps meanwhile, so they may never go out and then fail by timeout.
+ *
+ * <pre>
+ * Transactions transactions = new Transactions(d2xx, '\n', null);
+ * transactions.request(command).thenAccept(reply -&gt; println(new String(reply)));
+ * </pre>
+ */
+public class Transactions implements ReceiveHandler {
+
+	public static final int DEFAULT_TIMEOUT = 1000;
+
+	private final D2XX d2xx;
+	private final int delimiter;
+	private final CorrelationExtractor extractor;
+	private volatile int timeoutMillis = DEFAULT_TIMEOUT;
+	// only touched by the reader thread
+	private final byte[] replyBuffer = new byte[D2XX.DEFAULT_RECEIVE_CAPACITY];
+
+	// requests waiting for a reply, by id or in order when there is no extractor
+	private final ConcurrentHashMap<Object, Pending> byId = new ConcurrentHashMap<Object, Pending>();
+	private final ConcurrentLinkedQueue<Pending> inOrder = new ConcurrentLinkedQueue<Pending>();
+	private final ScheduledThreadPoolExecutor timer;
+	// keeps the order of inOrder and of the requests on the wire the same
+	private final Object sendLock = new Object();
+
+	private final AtomicLong timeouts = new AtomicLong();
+	private volatile long completed;
+	private volatile long unmatched;
+
+	/** A request waiting for its reply */
+	private final class Pending implements Runnable {
+
+		final Object id;
+		final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		volatile ScheduledFuture<?> timeout;
+
+		Pending(Object id){
+			this.id = id;
+		}
+
+		/** Timeout thread: fails the request if it is still waiting */
+		public void run(){
+			if (remove(this)){
+				timeouts.incrementAndGet();
+				future.completeExceptionally(new TimeoutException("No reply within " + timeoutMillis + " ms"));
+			}
+		}
+	}
+
+	/** Starts taking replies from the device
+	 *
+	 * @param d2xx 		- an open device
+	 * @param delimiter - the byte every reply ends with
+	 * @param extractor - matches replies to requests, or null to match them in order
+	 * @throws IllegalStateException when the device's received data is already
+	 * 								 taken, by other Transactions or an attached FrameDecoder
+	 */
+	public Transactions(D2XX d2xx, int delimiter, CorrelationExtractor extractor){
+		this.d2xx = d2xx;
+		this.delimiter = delimiter;
+		this.extractor = extractor;
+		if (!d2xx.setReceiveHandler(this)){
+			throw new IllegalStateException("The device's received data is already taken");
+		}
+		timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "D2XX transaction timeouts");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	/** Sets the timeout of requests sent afterwards
+	 *
+	 * @param milliseconds
+	 */
+	public void setTimeout(int milliseconds){
+		timeoutMillis = Math.max(1, milliseconds);
+	}
+
+	/** Sends a request with the default timeout
+	 *
+	 * @param command - the complete request
+	 * @return CompletableFuture - completes with the reply, delimiter included
+	 */
+	public CompletableFuture<byte[]> request(byte[] command){
+		return request(command, timeoutMillis);
+	}
+
+	/** Sends a request. Returns as soon as it is queued, waiting for room in
+	 *  the queue if needed
+	 *
+	 * @param command 		- the complete request
+	 * @param timeoutMillis - how long to wait for the reply
+	 * @return CompletableFuture - completes with the reply, delimiter included,
+	 * 							   or fails with a TimeoutException
+	 * @throws IllegalArgumentException when the CorrelationExtractor finds no id in the request
+	 */
+	public CompletableFuture<byte[]> request(byte[] command, int timeoutMillis){
+		Object id = null;
+		if (extractor != null){
+			id = extractor.extract(command);
+			if (id == null){
+				throw new IllegalArgumentException("The request has no id to match its reply with");
+			}
+		}
+		Pending pending = new Pending(id);
+		if (extractor != null){
+			if (byId.putIfAbsent(pending.id, pending) != null){
+				pending.future.completeExceptionally(new IllegalStateException("A request with id " + pending.id + " is already waiting"));
+				return pending.future;
+			}
+			send(pending, command, timeoutMillis);
+		} else {
+			synchronized (sendLock){
+				inOrder.add(pending);
+				send(pending, command, timeoutMillis);
+			}
+		}
+		return pending.future;
+	}
+
+	private void send(Pending pending, byte[] command, int timeoutMillis){
+		pending.timeout = timer.schedule(pending, timeoutMillis, TimeUnit.MILLISECONDS);
+		if (!d2xx.writeLossless(command, 0, command.length) && remove(pending)){
+			pending.timeout.cancel(false);
+			pending.future.completeExceptionally(new IllegalStateException("The device is closed"));
+		}
+	}
+
+	/** Reader thread: completes the requests whose replies have arrived */
+	public void received(D2XX d2xx){
+		int length;
+		while ((length = d2xx.readBytesUntil(delimiter, replyBuffer)) > 0){
+			byte[] reply = new byte[length];
+			System.arraycopy(replyBuffer, 0, reply, 0, length);
+			Pending pending;
+			if (extractor != null){
+				Object id;
+				try {
+					id = extractor.extract(reply);
+				} catch (RuntimeException e){
+					e.printStackTrace();
+					id = null;
+				}
+				pending = id != null ? byId.remove(id) : null;
+			} else {
+				pending = inOrder.poll();
+			}
+			if (pending != null){
+				ScheduledFuture<?> timeout = pending.timeout;
+				if (timeout != null){
+					timeout.cancel(false);
+				}
+				completed++;
+				pending.future.complete(reply);
+			} else {
+				unmatched++;
+			}
+		}
+	}
+
+	/** Fails every waiting request, their replies will not arrive once the
+	 *  link is lost and the ones still queued may be dropped while it is down
+	 */
+	public void connectionLost(D2XX d2xx){
+		IOException lost = new IOException("Connection to the device lost");
+		for (Pending pending : byId.values()){
+			fail(pending, lost);
+		}
+		for (Pending pending : inOrder){
+			fail(pending, lost);
+		}
+	}
+
+	private void fail(Pending pending, Throwable cause){
+		if (remove(pending)){
+			ScheduledFuture<?> timeout = pending.timeout;
+			if (timeout != null){
+				timeout.cancel(false);
+			}
+			pending.future.completeExceptionally(cause);
+		}
+	}
+
+	private boolean remove(Pending pending){
+		return extractor != null ? byId.remove(pending.id, pending) : inOrder.remove(pending);
+	}
+
+	/** Returns the number of requests waiting for a reply
+	 *
+	 * @return int - the requests in flight
+	 */
+	public int getPending(){
+		return extractor != null ? byId.size() : inOrder.size();
+	}
+
+	/** Returns the number of requests completed with a reply */
+	public long getCompleted(){
+		return completed;
+	}
+
+	/** Returns the number of requests that timed out */
+	public long getTimeouts(){
+		return timeouts.get();
+	}
+
+	/** Returns the number of replies that matched no waiting request */
+	public long getUnmatchedReplies(){
+		return unmatched;
+	}
+
+	/** Stops taking replies from the device and cancels the waiting requests */
+	public void close(){
+		d2xx.removeReceiveHandler(this);
+		timer.shutdownNow();
+		for (Pending pending : byId.values()){
+			pending.future.completeExceptionally(new CancellationException());
+		}
+		byId.clear();
+		Pending pending;
+		while ((pending = inOrder.poll()) != null){
+			pending.future.completeExceptionally(new CancellationException());
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.io.IOException;
+
+import com.ftdichip.ftd2xx.BitBangMode;
+import com.ftdichip.ftd2xx.DataBits;
+import com.ftdichip.ftd2xx.Parity;
+import com.ftdichip.ftd2xx.StopBits;
+
+/**
+ * The byte link that a D2XX instance reads from and writes to.
+ * FTDITransport talks to a real FTDI chip through FTD2XXj, LoopbackTransport
+ * simulates one in plain Java so the library can be tested and benchmarked
+ * without any hardware attached.
+ *
+ * A transport is written to by the writer thread and read from by the reader
+ * thread, so implementations must allow write() and read() to be called concurrently.
+ */
+public interface Transport {
+
+	/** Opens the link */
+	void open() throws IOException;
+
+	/** Closes the link */
+	void close() throws IOException;
+
+	/** Closes the link, ignoring errors, and opens it again after it failed.
+	 *  Implementations find the device again if it was unplugged and plugged back in
+	 */
+	void reopen() throws IOException;
+
+	/** Returns whether the link is open */
+	boolean isOpen();
+
+	/** Sets the baud rate of the link
+	 *
+	 * @param baudRate
+	 */
+	void setBaudRate(int baudRate) throws IOException;
+
+	/** Sets the data bits, stop bits and parity of the link
+	 *
+	 * @param dataBits
+	 * @param stopBits
+	 * @param parity
+	 */
+	void setDataCharacteristics(DataBits dataBits, StopBits stopBits, Parity parity) throws IOException;
+
+	/** Holds the TX line in the break (low) state, or releases it
+	 *
+	 * @param on
+	 */
+	void setBreak(boolean on) throws IOException;
+
+	/** Switches the pins to a bit-bang mode, or back to serial with BitBangMode.RESET
+	 *
+	 * @param directionMask - one bit per pin, 1 for output and 0 for input
+	 * @param mode
+	 */
+	void setBitMode(int directionMask, BitBangMode mode) throws IOException;
+
+	/** Applies the latency timer, USB transfer sizes, flow control and
+	 *  timeouts of a profile. Settings a transport cannot simulate are ignored
+	 *
+	 * @param profile
+	 */
+	void setProfile(DeviceProfile profile) throws IOException;
+
+	/** Sends a range of bytes, returning once the link has accepted them
+	 *
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 */
+	void write(byte[] buffer, int offset, int length) throws IOException;
+
+	/** Returns the number of received bytes that can be read without blocking
+	 *
+	 * @return int - the number of bytes waiting
+	 */
+	int available() throws IOException;
+
+	/** Reads up to length received bytes
+	 *
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return int - the number of bytes read
+	 */
+	int read(byte[] buffer, int offset, int length) throws IOException;
+}
@@ -0,0 +1,50 @@
+package com.hirschandmann.serial.d2xx;
+
+/**
+ * Gathers several small frames into one contiguous buffer on the writer
+ * thread, so they reach the device in a single transport write and USB
+ * transfer. Frames are appended in queue order, so byte order is preserved.
+ */
+class WriteBatch {
+
+	final byte[] data;
+	int length;
+	// queue timestamps of the frames in the batch, for latency accounting
+	final long[] timestamps;
+	int frames;
+
+	/**
+	 * @param capacity - the largest number of bytes, and of frames, sent in one transfer
+	 */
+	WriteBatch(int capacity){
+		data = new byte[capacity];
+		timestamps = new long[capacity];
+	}
+
+	/** Returns whether the frame can be appended without exceeding the capacity.
+	 *  Empty frames count too, the batch holds at most capacity() frames
+	 */
+	boolean fits(Frame frame){
+		return length + frame.length <= data.length && frames < timestamps.length;
+	}
+
+	/** Appends a frame's bytes. The frame can be recycled afterwards */
+	void add(Frame frame){
+		System.arraycopy(frame.data, 0, data, length, frame.length);
+		length += frame.length;
+		timestamps[frames++] = frame.timestamp;
+	}
+
+	boolean isFull(){
+		return length == data.length || frames == timestamps.length;
+	}
+
+	void clear(){
+		length = 0;
+		frames = 0;
+	}
+
+	int capacity(){
+		return data.length;
+	}
+}
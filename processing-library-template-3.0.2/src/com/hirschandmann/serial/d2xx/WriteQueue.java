@@ -0,0 +1,285 @@
+package com.hirschandmann.serial.d2xx;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue of pooled frames between any number of producer
+ * threads (the sketch, a CapturePlayer, callbacks on the reader thread) and
+ * the writer thread (the single consumer).
+ *
+ * Frames travel in a loop: a producer claims a free frame, fills it and
+ * publishes it, the consumer polls it, sends it and recycles it back into
+ * the free pool. Once the pool has warmed up no further buffers are allocated.
+ *
+ * Producers take free frames with a compare-and-set on the free head and
+ * reserve queue slots by incrementing the tail. Each slot records the
+ * sequence number of the frame last stored in it, and a slot only counts as
+ * published once that number matches, so frames are taken in the order their
+ * slots were reserved. Producers dropping the oldest frame under
+ * {@link OverflowPolicy#DROP_OLDEST} compete with the consumer for the head
+ * with a compare-and-set as well. The free pool works the same way, so a
+ * producer can also hand back a frame it claimed but will not publish.
+ */
+class WriteQueue {
+
+	// time to wait between retries while blocking for a free frame
+	private static final long BLOCK_PARK_NANOS = 50000;
+
+	private final int capacity;
+	private final int mask;
+
+	// published frames, indexed by sequence number
+	private final AtomicReferenceArray<Frame> queued;
+	// sequence number of the frame stored in each slot, -1 before the first
+	private final AtomicLongArray published;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	// free frames, recycled by the consumer or discarded by producers
+	private final AtomicReferenceArray<Frame> free;
+	// sequence number of the frame last freed into each slot
+	private final AtomicLongArray freed;
+	private final AtomicLong freeHead = new AtomicLong();
+	private final AtomicLong freeTail = new AtomicLong();
+
+	private volatile OverflowPolicy policy;
+	private volatile boolean closed;
+	// set while the link is down, producers then never wait for the consumer
+	private volatile boolean holding;
+	private final AtomicLong dropped = new AtomicLong();
+	// number of frame buffers allocated or grown
+	private final AtomicLong allocations = new AtomicLong();
+	// deepest the queue has been, updated by producers without synchronisation
+	private volatile int maxDepth;
+
+	/**
+	 * @param capacity - the maximum number of frames that can wait to be sent
+	 * @param policy   - what to do with a write when all frames are in use
+	 */
+	WriteQueue(int capacity, OverflowPolicy policy){
+		if (capacity < 1){
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		this.capacity = capacity;
+		this.policy = policy;
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity){
+			size <<= 1;
+		}
+		mask = size - 1;
+		queued = new AtomicReferenceArray<Frame>(size);
+		published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++){
+			published.set(i, -1);
+		}
+		free = new AtomicReferenceArray<Frame>(size);
+		freed = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++){
+			freed.set(i, i < capacity ? i : -1);
+		}
+		for (int i = 0; i < capacity; i++){
+			free.set(i, new Frame(0));
+		}
+		freeTail.set(capacity);
+	}
+
+	/** Producer side: takes a free frame able to hold the given amount of bytes,
+	 *  applying the overflow policy when none is left.
+	 *
+	 * @param minCapacity - the number of bytes the caller is going to write
+	 * @return Frame - a frame owned by the caller, or null if the write should be dropped
+	 */
+	Frame claim(int minCapacity){
+		return claim(minCapacity, policy);
+	}
+
+	/** Producer side: takes a free frame, applying the given overflow policy
+	 *  instead of the queue's own when none is left
+	 *
+	 * @param minCapacity - the number of bytes the caller is going to write
+	 * @param policy 	  - what to do when all frames are in use
+	 * @return Frame - a frame owned by the caller, or null if the write should be dropped
+	 */
+	Frame claim(int minCapacity, OverflowPolicy policy){
+		Frame frame = claimFree(policy);
+		if (frame != null){
+			frame.barrier = null;
+			frame.command = 0;
+			frame.lossless = false;
+			if (frame.ensureCapacity(minCapacity)){
+				allocations.incrementAndGet();
+			}
+		}
+		return frame;
+	}
+
+	private Frame claimFree(OverflowPolicy policy){
+		while (!closed){
+			long h = freeHead.get();
+			if (h < freeTail.get()){
+				if (freed.get((int) h & mask) != h){
+					// reserved by a thread that has not stored the frame yet
+					Thread.yield();
+					continue;
+				}
+				// the slot cannot be recycled into before the head moves past it
+				Frame frame = free.get((int) h & mask);
+				if (freeHead.compareAndSet(h, h + 1)){
+					return frame;
+				}
+				continue;
+			}
+			switch (holding ? OverflowPolicy.DROP_OLDEST : policy){
+				case DROP_NEWEST:
+					dropped.incrementAndGet();
+					return null;
+				case DROP_OLDEST:
+					// frames of a FrameSync commit are kept, other devices wait for
+					// them, unless the link is down and nothing is being sent
+					Frame oldest = take(!holding);
+					if (oldest != null){
+						dropped.incrementAndGet();
+						if (oldest.barrier != null){
+							oldest.barrier.leave();
+						}
+						return oldest;
+					}
+					// the only frames left are in flight on the writer thread,
+					// or the oldest belongs to a commit
+					LockSupport.parkNanos(BLOCK_PARK_NANOS);
+					break;
+				case BLOCK:
+					LockSupport.parkNanos(BLOCK_PARK_NANOS);
+					break;
+			}
+		}
+		return null;
+	}
+
+	/** Producer side: hands a filled frame to the consumer
+	 *
+	 * @param frame - a frame previously returned by claim()
+	 */
+	void publish(Frame frame){
+		long t = tail.getAndIncrement();
+		queued.set((int) t & mask, frame);
+		published.set((int) t & mask, t);
+		int depth = (int) (t + 1 - head.get());
+		if (depth > maxDepth){
+			maxDepth = depth;
+		}
+	}
+
+	/** Consumer side: takes the oldest published frame
+	 *
+	 * @return Frame - the next frame to send, or null if the queue is empty
+	 */
+	Frame poll(){
+		return take(false);
+	}
+
+	/** Returns a frame to the free pool: a sent one on the consumer side, or
+	 *  a claimed one a producer will not publish
+	 *
+	 * @param frame - a frame previously returned by poll() or claim()
+	 */
+	void recycle(Frame frame){
+		long t = freeTail.getAndIncrement();
+		free.set((int) t & mask, frame);
+		freed.set((int) t & mask, t);
+	}
+
+	/** Takes the oldest published frame
+	 *
+	 * @param keepBarriers - whether to leave a frame of a FrameSync commit in the queue
+	 * @return Frame - the frame, or null if there is none to take
+	 */
+	private Frame take(boolean keepBarriers){
+		while (true){
+			long h = head.get();
+			if (h >= tail.get()){
+				return null;
+			}
+			if (published.get((int) h & mask) != h){
+				// reserved by a producer that has not stored its frame yet
+				return null;
+			}
+			// cannot be overwritten before the head moves past it, there are
+			// not enough frames to fill every other slot in the meantime
+			Frame frame = queued.get((int) h & mask);
+			if (keepBarriers && frame.barrier != null){
+				return null;
+			}
+			if (head.compareAndSet(h, h + 1)){
+				return frame;
+			}
+		}
+	}
+
+	/** Producer side: grows every idle frame so that writes up to the given size
+	 *  never allocate. Frames that are queued or in flight are left untouched.
+	 *  Must not run while another thread claims frames.
+	 *
+	 * @param frameSize - the largest write expected, in bytes
+	 */
+	void preallocate(int frameSize){
+		long end = freeTail.get();
+		for (long i = freeHead.get(); i < end; i++){
+			if (free.get((int) i & mask).ensureCapacity(frameSize)){
+				allocations.incrementAndGet();
+			}
+		}
+	}
+
+	/** Keeps the most recent frames while the consumer is not sending:
+	 *  the oldest frame always makes room, whatever the overflow policy
+	 *
+	 * @param holding
+	 */
+	void setHolding(boolean holding){
+		this.holding = holding;
+	}
+
+	/** Stops the queue from handing out frames, releasing any producer blocked in claim() */
+	void close(){
+		closed = true;
+	}
+
+	/** Returns whether every frame is back in the free pool, meaning none is
+	 *  queued or being sent by the consumer
+	 */
+	boolean isIdle(){
+		return freeTail.get() - freeHead.get() == capacity;
+	}
+
+	int size(){
+		return (int) (tail.get() - head.get());
+	}
+
+	int capacity(){
+		return capacity;
+	}
+
+	int getMaxDepth(){
+		return maxDepth;
+	}
+
+	long getAllocations(){
+		return allocations.get();
+	}
+
+	long getDropped(){
+		return dropped.get();
+	}
+
+	OverflowPolicy getPolicy(){
+		return policy;
+	}
+
+	void setPolicy(OverflowPolicy policy){
+		this.policy = policy;
+	}
+}